@@ -0,0 +1,66 @@
+package org.vai.vari.pbc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time from an edit at the source to the document reaching the target, with the
+ * manager following the {@link MockEndpoints} change feed and no polling cycles at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeFeedBenchmark {
+
+	@Param({"100"})
+	public int documents;
+
+	@Param({"0", "2"})
+	public long latencyMs;
+
+	private MockEndpoints endpoints;
+	private SimpleSyncServiceManager mgr;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+				.setLevel(ch.qos.logback.classic.Level.WARN);
+		endpoints = new MockEndpoints(documents, 1024, latencyMs);
+		mgr = SyncCycleBenchmark.newManager(endpoints, 1);
+		mgr.changeFeedUri = endpoints.getBaseUri() + "changes";
+		// one cycle for the initial sync, which also starts following the feed
+		mgr.run();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mgr.close();
+		endpoints.close();
+	}
+
+	@Benchmark
+	public long editToTarget() throws InterruptedException {
+		long posts = endpoints.getTargetPosts();
+		endpoints.touch("doc-" + (next++ % documents));
+		while (endpoints.getTargetPosts() == posts) Thread.sleep(0, 100000);
+		return posts;
+	}
+}
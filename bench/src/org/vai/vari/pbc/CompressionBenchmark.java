@@ -0,0 +1,123 @@
+package org.vai.vari.pbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cost and benefit of compressing the traffic with each endpoint:
+ * <ul>
+ * <li>endToEnd: one cycle syncing every document against {@link MockEndpoints}, with the same
+ * compression setting on all three endpoints; the <code>wireBytes</code> and <code>documentsSent</code>
+ * counters give the bytes on the wire per document</li>
+ * <li>gzip / gunzip: CPU time to compress or decompress one document (the same for every
+ * <code>compression</code>)</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({"100"})
+	public int documents;
+
+	@Param({"1", "16"})
+	public int documentKb;
+
+	@Param({"none", "accept", "gzip"})
+	public String compression;
+
+	private MockEndpoints endpoints;
+	private SimpleSyncServiceManager mgr;
+	private byte[] document;
+	private byte[] gzipped;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Wire {
+		public long wireBytes;
+		public long documentsSent;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			wireBytes = 0;
+			documentsSent = 0;
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+				.setLevel(ch.qos.logback.classic.Level.WARN);
+		endpoints = new MockEndpoints(documents, documentKb * 1024, 0);
+		endpoints.setCompression(true);
+		mgr = SyncCycleBenchmark.newManager(endpoints, 50);
+		mgr.sourceCompression = compression;
+		mgr.targetCompression = compression;
+		mgr.syncCompression = compression;
+		mgr.run();
+
+		document = endpoints.getDocument("doc-0");
+		gzipped = gzip();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mgr.close();
+		endpoints.close();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public boolean endToEnd(Wire wire) {
+		endpoints.touchAll();
+		long bytes = endpoints.getWireBytes();
+		long posts = endpoints.getTargetPosts();
+		boolean work = mgr.poll();
+		wire.wireBytes += endpoints.getWireBytes() - bytes;
+		wire.documentsSent += endpoints.getTargetPosts() - posts;
+		return work;
+	}
+
+	@Benchmark
+	public byte[] gzip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(document.length / 4);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(document);
+		}
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public int gunzip() throws IOException {
+		int n = 0;
+		byte[] buffer = new byte[8192];
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) n += read;
+		}
+		return n;
+	}
+}
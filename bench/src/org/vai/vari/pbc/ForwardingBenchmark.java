@@ -0,0 +1,77 @@
+package org.vai.vari.pbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Cost of turning one source document into a target request body.
+ * Run with <code>-prof gc</code> and compare gc.alloc.rate.norm (bytes allocated per document).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardingBenchmark {
+
+	@Param({"1", "64", "1024"})
+	public int documentKb;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final JsonFactory factory = mapper.getFactory();
+	private byte[] body;
+
+	@Setup
+	public void setup() {
+		StringBuilder doc = new StringBuilder("{\"key\":\"doc-1\",\"lastModified\":\"2016-05-01T00:00:00\",\"items\":[");
+		for (int i = 0; doc.length() < documentKb * 1024; i++) {
+			if (i > 0) doc.append(',');
+			doc.append("{\"n\":").append(i).append(",\"value\":1.25,\"text\":\"lorem ipsum dolor sit amet\"}");
+		}
+		body = doc.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Response body as a String, parsed into a tree, then serialized again for the POST. */
+	@Benchmark
+	public byte[] reserialize() throws IOException {
+		String sourceData = new String(body, StandardCharsets.UTF_8);
+		JsonNode data = mapper.readTree(sourceData);
+		String id = data.get("key").asText();
+		return (id + mapper.writeValueAsString(data)).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Response body forwarded as is, with only the id pulled out. */
+	@Benchmark
+	public byte[] passThrough() throws IOException {
+		return RawDocument.whole(body, factory, "key").bytes;
+	}
+
+	/** Array element copied token by token off a stream. */
+	@Benchmark
+	public byte[] passThroughStreamed() throws IOException {
+		try (JsonParser parser = factory.createParser(new ByteArrayInputStream(body))) {
+			parser.nextToken();
+			return RawDocument.copy(parser, factory, "key", null).bytes;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package org.vai.vari.pbc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vai.vari.pbc.SimpleSyncServiceManager.StatusRecord;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Documents per second through the JSON paths: a new ObjectMapper per
+ * document (the old code) against the shared {@link JsonCodec}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+	private static final byte[] DOCUMENT = ("{\"key\":\"doc-1\",\"lastModified\":\"2016-05-01T00:00:00\","
+			+ "\"title\":\"lorem ipsum\",\"tags\":[\"a\",\"b\",\"c\"],\"size\":1024,\"ratio\":0.5}")
+			.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] STATUS = ("{\"id\":\"doc-1\",\"lastModified\":\"2016-05-01T00:00:00\","
+			+ "\"syncedStatus\":200,\"syncedTimestamp\":\"2016-05-01T00:01:00\"}").getBytes(StandardCharsets.UTF_8);
+
+	private final JsonCodec codec = new JsonCodec().warm();
+
+	@Benchmark
+	public byte[] documentNewMapper() throws IOException {
+		JsonNode doc = new ObjectMapper().readTree(DOCUMENT);
+		return new ObjectMapper().writeValueAsBytes(doc);
+	}
+
+	@Benchmark
+	public byte[] documentSharedCodec() throws IOException {
+		JsonNode doc = codec.treeReader.readValue(DOCUMENT);
+		return codec.writer.writeValueAsBytes(doc);
+	}
+
+	@Benchmark
+	public byte[] statusNewMapper() throws IOException {
+		StatusRecord status = new ObjectMapper().readValue(STATUS, StatusRecord.class);
+		return new ObjectMapper().writeValueAsBytes(status);
+	}
+
+	@Benchmark
+	public byte[] statusSharedCodec() throws IOException {
+		StatusRecord status = codec.statusReader.readValue(STATUS);
+		return codec.writer.writeValueAsBytes(status);
+	}
+}
@@ -0,0 +1,293 @@
+package org.vai.vari.pbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.vai.vari.pbc.SimpleSyncServiceManager.StatusRecord;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the source, target and sync status endpoints, for benchmarks.
+ * <ul>
+ * <li><code>GET /src/?starttime=</code> returns the documents modified since then in a <code>{"d":[...]}</code> envelope,
+ * and <code>GET /src/&lt;id&gt;</code> one document</li>
+ * <li><code>POST /tgt/&lt;id&gt;</code> accepts a document</li>
+ * <li><code>GET /sync?starttime=&amp;syncedStatus=0</code> returns status records, and PUT or POST writes
+ * one record or an array of them</li>
+ * <li><code>GET /changes</code> streams server-sent events, one per modified document, from Last-Event-ID
+ * if given or else from now on</li>
+ * </ul>
+ * Every request waits {@code latencyMs} before it is answered. Compressed request bodies are
+ * decoded, and with {@link #setCompression(boolean)} responses are gzipped for clients that accept it.
+ * Documents are padded with words drawn at random, so they compress roughly like real text.
+ */
+public class MockEndpoints implements Closeable {
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+	private static final LocalDateTime EPOCH = LocalDateTime.of(2016, 1, 1, 0, 0);
+	private static final String[] WORDS = ("lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor "
+			+ "incididunt ut labore et dolore magna aliqua enim ad minim veniam quis nostrud exercitation ullamco laboris "
+			+ "nisi aliquip ex ea commodo consequat duis aute irure in reprehenderit voluptate velit esse cillum eu fugiat "
+			+ "nulla pariatur excepteur sint occaecat cupidatat non proident sunt culpa qui officia deserunt mollit anim "
+			+ "id est laborum patient sample variant gene chromosome position reference allele").split(" ");
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long latencyMs;
+	private final String padding;
+	private final Map<String, byte[]> documents = new ConcurrentSkipListMap<>();
+	private final Map<String, String> lastModified = new ConcurrentSkipListMap<>();
+	private final Map<String, StatusRecord> status = new ConcurrentSkipListMap<>();
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicLong targetPosts = new AtomicLong();
+	private final AtomicLong wireBytes = new AtomicLong();
+	private volatile boolean compression;
+	// change feed events, as {"key":..,"lastModified":..} objects; guarded by itself
+	private final List<String> changes = new ArrayList<>();
+
+	/**
+	 * @param documentBytes approximate size of each document
+	 */
+	public MockEndpoints(int documentCount, int documentBytes, long latencyMs) throws IOException {
+		this.latencyMs = latencyMs;
+		StringBuilder pad = new StringBuilder();
+		Random random = new Random(documentBytes);
+		while (pad.length() < documentBytes) {
+			pad.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(3) == 0 ? " " + random.nextInt(10000) + " " : " ");
+		}
+		padding = pad.toString();
+		for (int i = 0; i < documentCount; i++) put("doc-" + i, EPOCH);
+		executor = Executors.newFixedThreadPool(32, r -> {
+			Thread t = new Thread(r, "mock-endpoint");
+			t.setDaemon(true);
+			return t;
+		});
+		server = HttpExchanges.createServer(new InetSocketAddress("127.0.0.1", 0), executor);
+		server.createContext("/src", this::source);
+		server.createContext("/tgt", this::target);
+		server.createContext("/sync", this::sync);
+		server.createContext("/changes", this::changes);
+		server.start();
+	}
+
+	public String getBaseUri() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Give every document a new lastModified, later than any before.
+	 */
+	public void touchAll() {
+		LocalDateTime time = EPOCH.plusSeconds(generation.incrementAndGet());
+		for (String id : documents.keySet()) put(id, time);
+	}
+
+	/**
+	 * Mark every document as sync'ed at its current lastModified.
+	 */
+	public void markAllSynced() {
+		setAllStatus(200);
+	}
+
+	/**
+	 * Give every document a pending status record at its current lastModified.
+	 */
+	public void markAllPending() {
+		setAllStatus(0);
+	}
+
+	/**
+	 * Give one document a new lastModified, later than any before.
+	 */
+	public void touch(String id) {
+		put(id, EPOCH.plusSeconds(generation.incrementAndGet()));
+	}
+
+	public String getLatestTimestamp() {
+		return EPOCH.plusSeconds(generation.get()).format(TIMESTAMP);
+	}
+
+	public long getTargetPosts() {
+		return targetPosts.get();
+	}
+
+	public byte[] getDocument(String id) {
+		return documents.get(id);
+	}
+
+	/**
+	 * Gzip responses to clients that send Accept-Encoding: gzip.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return request and response body bytes as they went over the wire, compressed or not
+	 */
+	public long getWireBytes() {
+		return wireBytes.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void put(String id, LocalDateTime time) {
+		String modified = time.format(TIMESTAMP);
+		lastModified.put(id, modified);
+		documents.put(id, ("{\"key\":\"" + id + "\",\"lastModified\":\"" + modified + "\",\"body\":\"" + padding + "\"}")
+				.getBytes(StandardCharsets.UTF_8));
+		synchronized (changes) {
+			changes.add("{\"key\":\"" + id + "\",\"lastModified\":\"" + modified + "\"}");
+			changes.notifyAll();
+		}
+	}
+
+	private void setAllStatus(int syncedStatus) {
+		for (Map.Entry<String, String> e : lastModified.entrySet()) {
+			StatusRecord record = new StatusRecord();
+			record.id = e.getKey();
+			record.lastModified = e.getValue();
+			record.syncedStatus = syncedStatus;
+			status.put(record.id, record);
+		}
+	}
+
+	private void source(HttpExchange exchange) throws IOException {
+		HttpExchanges.delay(latencyMs);
+		String path = exchange.getRequestURI().getPath();
+		String id = path.substring("/src".length()).replaceFirst("^/", "");
+		if (!id.isEmpty()) {
+			byte[] document = documents.get(id);
+			reply(exchange, document == null ? 404 : 200, document == null ? new byte[0] : document);
+			return;
+		}
+		String since = HttpExchanges.queryParam(exchange, "starttime");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write("{\"d\":[".getBytes(StandardCharsets.UTF_8));
+		boolean first = true;
+		for (Map.Entry<String, byte[]> e : documents.entrySet()) {
+			if (since != null && lastModified.get(e.getKey()).compareTo(since) < 0) continue;
+			if (!first) body.write(',');
+			body.write(e.getValue());
+			first = false;
+		}
+		body.write("]}".getBytes(StandardCharsets.UTF_8));
+		reply(exchange, 200, body.toByteArray());
+	}
+
+	private void changes(HttpExchange exchange) throws IOException {
+		String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+		int next;
+		synchronized (changes) {
+			next = lastEventId != null ? Integer.parseInt(lastEventId) + 1 : changes.size();
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			while (true) {
+				StringBuilder events = new StringBuilder();
+				synchronized (changes) {
+					while (next >= changes.size()) changes.wait();
+					for (; next < changes.size(); next++) {
+						events.append("id: ").append(next).append("\ndata: ").append(changes.get(next)).append("\n\n");
+					}
+				}
+				out.write(events.toString().getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			// closing
+		}
+	}
+
+	private void target(HttpExchange exchange) throws IOException {
+		HttpExchanges.delay(latencyMs);
+		readBody(exchange);
+		targetPosts.incrementAndGet();
+		reply(exchange, 200, new byte[0]);
+	}
+
+	private void sync(HttpExchange exchange) throws IOException {
+		HttpExchanges.delay(latencyMs);
+		String method = exchange.getRequestMethod();
+		if (method.equals("GET")) {
+			String since = HttpExchanges.queryParam(exchange, "starttime");
+			boolean pendingOnly = "0".equals(HttpExchanges.queryParam(exchange, "syncedStatus"));
+			StringBuilder body = new StringBuilder("{\"d\":[");
+			boolean first = true;
+			for (StatusRecord record : status.values()) {
+				if (since != null && record.lastModified.compareTo(since) < 0) continue;
+				if (pendingOnly && record.syncedStatus != 0) continue;
+				if (!first) body.append(',');
+				body.append(mapper.writeValueAsString(record));
+				first = false;
+			}
+			reply(exchange, 200, body.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		JsonNode body = mapper.readTree(readBody(exchange));
+		if (!body.isArray()) {
+			reply(exchange, write(method, mapper.treeToValue(body, StatusRecord.class)), new byte[0]);
+			return;
+		}
+		StringBuilder results = new StringBuilder("{\"d\":[");
+		for (JsonNode item : body) {
+			StatusRecord record = mapper.treeToValue(item, StatusRecord.class);
+			if (results.length() > 6) results.append(',');
+			results.append("{\"id\":\"").append(record.id).append("\",\"status\":").append(write(method, record)).append('}');
+		}
+		reply(exchange, 200, results.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private int write(String method, StatusRecord record) {
+		if (method.equals("POST")) {
+			return status.putIfAbsent(record.id, record) == null ? 200 : 409;
+		}
+		status.put(record.id, record);
+		return 200;
+	}
+
+	private byte[] readBody(HttpExchange exchange) throws IOException {
+		byte[] body = HttpExchanges.readAll(exchange.getRequestBody());
+		wireBytes.addAndGet(body.length);
+		return HttpExchanges.decode(exchange, body);
+	}
+
+	private void reply(HttpExchange exchange, int code, byte[] body) throws IOException {
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (compression && body.length > 0 && accept != null && accept.contains("gzip")) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+				gzip.write(body);
+			}
+			body = out.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		wireBytes.addAndGet(body.length);
+		HttpExchanges.reply(exchange, code, body);
+	}
+}
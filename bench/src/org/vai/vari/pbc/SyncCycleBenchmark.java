@@ -0,0 +1,125 @@
+package org.vai.vari.pbc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time for one {@link SimpleSyncServiceManager#run()} cycle against {@link MockEndpoints}:
+ * <ul>
+ * <li>reconcile: every document is already sync'ed, so the cycle only reads and compares</li>
+ * <li>transfer: every document has a pending status record, and nothing new at the source</li>
+ * <li>endToEnd: every document was modified since the last cycle</li>
+ * </ul>
+ * Divide by {@code documents} for the time per document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncCycleBenchmark {
+
+	@Param({"100"})
+	public int documents;
+
+	@Param({"1", "16"})
+	public int documentKb;
+
+	@Param({"0", "2"})
+	public long latencyMs;
+
+	@Param({"1", "50"})
+	public int statusBatchSize;
+
+	private MockEndpoints endpoints;
+	private SimpleSyncServiceManager mgr;
+
+	@Setup
+	public void setup() throws IOException {
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+				.setLevel(ch.qos.logback.classic.Level.WARN);
+		endpoints = new MockEndpoints(documents, documentKb * 1024, latencyMs);
+		mgr = newManager(endpoints, statusBatchSize);
+		// first cycle builds the clients and syncs everything
+		mgr.run();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mgr.close();
+		endpoints.close();
+	}
+
+	@State(Scope.Benchmark)
+	public static class Reconcile {
+		@Setup(Level.Invocation)
+		public void setup(SyncCycleBenchmark b) {
+			b.endpoints.markAllSynced();
+			// query the full history, as after a restart without a checkpoint
+			b.mgr.mruTimestamp = null;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Transfer {
+		@Setup(Level.Invocation)
+		public void setup(SyncCycleBenchmark b) {
+			b.endpoints.markAllPending();
+			b.mgr.mruTimestamp = b.endpoints.getLatestTimestamp();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class EndToEnd {
+		@Setup(Level.Invocation)
+		public void setup(SyncCycleBenchmark b) {
+			b.endpoints.touchAll();
+		}
+	}
+
+	@Benchmark
+	public boolean reconcile(Reconcile state) {
+		return mgr.poll();
+	}
+
+	@Benchmark
+	public boolean transfer(Transfer state) {
+		return mgr.poll();
+	}
+
+	@Benchmark
+	public boolean endToEnd(EndToEnd state) {
+		return mgr.poll();
+	}
+
+	static SimpleSyncServiceManager newManager(MockEndpoints endpoints, int statusBatchSize) {
+		SimpleSyncServiceManager mgr = new SimpleSyncServiceManager();
+		mgr.logger = LoggerFactory.getLogger(SimpleSyncServiceManager.class);
+		mgr.sourceUri = endpoints.getBaseUri() + "src/";
+		mgr.sourceKeyStore = "";
+		mgr.targetUri = endpoints.getBaseUri() + "tgt/";
+		mgr.targetUsername = "";
+		mgr.idField = "key";
+		mgr.syncUri = endpoints.getBaseUri() + "sync";
+		mgr.statusBatchSize = statusBatchSize;
+		// the transfer benchmark resets the status records behind the manager's back
+		mgr.syncPendingRefreshSeconds = 0;
+		return mgr;
+	}
+}
@@ -0,0 +1,93 @@
+package org.vai.vari.pbc;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The SyncStatusIndex against a HashSet of the same keys, for catalogs of increasing size:
+ * lookups alone, and a whole reconcile, which builds the set from the sync records and then
+ * looks up each modified document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyncStatusIndexBenchmark {
+
+	private static final int LOOKUPS = 1024;
+
+	@Param({"1000", "10000", "100000"})
+	public int catalogSize;
+
+	private String[] records;
+	private SyncStatusIndex index;
+	private Set<String> hashSet;
+	private String[] probes;
+
+	@Setup
+	public void setup() {
+		// keys built the way a cycle builds them, not interned literals
+		records = new String[catalogSize];
+		index = new SyncStatusIndex(catalogSize);
+		hashSet = new HashSet<>(catalogSize * 4 / 3 + 1);
+		for (int i = 0; i < catalogSize; i++) {
+			records[i] = SyncStatusIndex.key("doc-" + i, "2016-05-01T00:00:00", false);
+			index.add(records[i]);
+			hashSet.add(records[i]);
+		}
+		// half hits spread over the catalog, half misses
+		probes = new String[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			String id = i % 2 == 0 ? "doc-" + (long) i * catalogSize / LOOKUPS : "new-" + i;
+			probes[i] = SyncStatusIndex.key(id, "2016-05-01T00:00:00", false);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void indexLookup(Blackhole bh) {
+		for (String probe : probes) bh.consume(index.contains(probe));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void hashSetLookup(Blackhole bh) {
+		for (String probe : probes) bh.consume(hashSet.contains(probe));
+	}
+
+	@Benchmark
+	public int indexReconcile() {
+		// sized as run() sizes it: not at all
+		SyncStatusIndex synced = new SyncStatusIndex();
+		for (String record : records) synced.add(record);
+		int skipped = 0;
+		for (String probe : probes) if (synced.contains(probe)) skipped++;
+		return skipped;
+	}
+
+	@Benchmark
+	public int hashSetReconcile() {
+		Set<String> synced = new HashSet<>();
+		for (String record : records) synced.add(record);
+		int skipped = 0;
+		for (String probe : probes) if (synced.contains(probe)) skipped++;
+		return skipped;
+	}
+}
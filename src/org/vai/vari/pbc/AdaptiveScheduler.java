@@ -0,0 +1,156 @@
+package org.vai.vari.pbc;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a polling cycle over and over on one thread, so cycles never overlap.
+ * A cycle that found work is followed straight away by the next one; after an
+ * idle cycle the delay starts at {@code interval} and is multiplied by
+ * {@code backoff} for each idle cycle in a row, up to {@code maxInterval}.
+ * <p>
+ * Several schedulers can share the threads of one executor. Due cycles run in
+ * order of their due time, so a scheduler that keeps finding work goes back in
+ * line behind the others that are already due.
+ */
+public class AdaptiveScheduler implements Closeable {
+
+	/** shortest delay a limit can cut an idle delay to, so a limit that stays at 0 can't spin the cycle */
+	static final long MIN_LIMITED_DELAY = 1000;
+
+	private final Logger logger = LoggerFactory.getLogger(AdaptiveScheduler.class);
+	private final ScheduledExecutorService executor;
+	private final boolean ownExecutor;
+	private final long interval;
+	private final long maxInterval;
+	private final double backoff;
+	private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+	private long idleDelay;
+	private volatile long lastCycleDuration = -1;
+	private volatile long nextDelay;
+	private MetricsRegistry metrics = MetricsRegistry.NONE;
+	private LongSupplier delayLimit = () -> -1;
+
+	/**
+	 * @param interval delay after an idle cycle, in milliseconds
+	 * @param maxInterval longest delay after a run of idle cycles, in milliseconds
+	 * @param backoff factor the delay grows by for each idle cycle in a row
+	 */
+	public AdaptiveScheduler(long interval, long maxInterval, double backoff) {
+		this(Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "poll")), true, interval, maxInterval, backoff);
+	}
+
+	/**
+	 * Run cycles on a shared executor, e.g. from {@link #newExecutor(int)}; it is not shut down by {@link #close()}.
+	 */
+	public AdaptiveScheduler(ScheduledExecutorService executor, long interval, long maxInterval, double backoff) {
+		this(executor, false, interval, maxInterval, backoff);
+	}
+
+	private AdaptiveScheduler(ScheduledExecutorService executor, boolean ownExecutor, long interval, long maxInterval,
+			double backoff) {
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.interval = interval;
+		this.maxInterval = Math.max(interval, maxInterval);
+		this.backoff = Math.max(1, backoff);
+		this.idleDelay = interval;
+	}
+
+	/**
+	 * @return an executor for schedulers that share {@code threads} poll threads
+	 */
+	public static ScheduledExecutorService newExecutor(int threads) {
+		AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newScheduledThreadPool(Math.max(1, threads),
+				r -> new Thread(r, "poll-" + threadCount.incrementAndGet()));
+	}
+
+	/**
+	 * Report the last cycle's duration and the next delay as gauges.
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Cap the delay after an idle cycle, e.g. at the time of the next retry, though not below
+	 * {@value #MIN_LIMITED_DELAY} ms.
+	 * @param delayLimit returns the longest delay in milliseconds, or -1 for no limit
+	 */
+	public void setDelayLimit(LongSupplier delayLimit) {
+		this.delayLimit = delayLimit;
+	}
+
+	/**
+	 * Run the first cycle now.
+	 * @param cycle returns true if it found work
+	 * @return completes exceptionally with the exception that ended a cycle, or when the scheduler is closed
+	 */
+	public CompletableFuture<Void> start(BooleanSupplier cycle) {
+		executor.execute(() -> runCycle(cycle));
+		return stopped;
+	}
+
+	/**
+	 * @return how long the last cycle took in milliseconds, or -1 before the first one ends
+	 */
+	public long getLastCycleDuration() {
+		return lastCycleDuration;
+	}
+
+	/**
+	 * @return the delay between the end of the last cycle and the start of the next one, in milliseconds
+	 */
+	public long getNextDelay() {
+		return nextDelay;
+	}
+
+	@Override
+	public void close() {
+		stopped.complete(null);
+		if (ownExecutor) executor.shutdownNow();
+	}
+
+	private void runCycle(BooleanSupplier cycle) {
+		if (stopped.isDone()) return;
+		long start = System.nanoTime();
+		boolean work;
+		try {
+			work = cycle.getAsBoolean();
+		} catch (Throwable e) {
+			stopped.completeExceptionally(e);
+			return;
+		}
+		lastCycleDuration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		long delay;
+		if (work) {
+			delay = 0;
+			idleDelay = interval;
+		} else {
+			delay = idleDelay;
+			idleDelay = Math.min(maxInterval, (long) (idleDelay * backoff));
+			long limit = delayLimit.getAsLong();
+			if (limit >= 0) delay = Math.min(delay, Math.max(limit, MIN_LIMITED_DELAY));
+		}
+		nextDelay = delay;
+		metrics.gauge("last_cycle_duration_ms", lastCycleDuration);
+		metrics.gauge("next_poll_delay_ms", delay);
+		logger.info("Cycle took {} ms, next in {} ms.", lastCycleDuration, delay);
+		try {
+			executor.schedule(() -> runCycle(cycle), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// closed while the cycle ran
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package org.vai.vari.pbc;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends alerts from a background thread, so a slow sink never holds up the sync.
+ * The first alert for a subject goes out at once; further alerts with that subject
+ * are collected for {@code window} ms and sent as one digest, identical messages
+ * counted rather than repeated. Alerts that don't fit in the queue are dropped.
+ */
+public class AlertDispatcher implements Closeable {
+
+	// lines in a digest before the rest are only counted
+	private static final int MAX_DIGEST_LINES = 50;
+	private static final String[] STOP = new String[0];
+
+	private static class Window {
+		long end;
+		final Map<String, Integer> messages = new LinkedHashMap<>();
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(AlertDispatcher.class);
+	private final AlertSink sink;
+	private final long window;
+	private final BlockingQueue<String[]> queue;
+	private final Map<String, Window> windows = new HashMap<>();
+	private final Thread thread;
+	private MetricsRegistry metrics = MetricsRegistry.NONE;
+
+	/**
+	 * @param window milliseconds over which alerts with the same subject are collected into one
+	 * @param capacity alerts waiting to be sent before further ones are dropped
+	 */
+	public AlertDispatcher(AlertSink sink, long window, int capacity) {
+		this.sink = sink;
+		this.window = window;
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		this.thread = new Thread(this::dispatch, "alerts");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Queue an alert; never blocks.
+	 */
+	public void alert(String subject, String message) {
+		if (!queue.offer(new String[] { subject, String.valueOf(message) })) {
+			metrics.count("alerts_dropped_total", 1);
+			logger.warn("Alert queue full, dropped {}: {}", subject, message);
+		}
+	}
+
+	/**
+	 * Send any digests still being collected, then stop.
+	 */
+	@Override
+	public void close() {
+		try {
+			queue.put(STOP);
+			thread.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void dispatch() {
+		try {
+			while (true) {
+				String[] alert = queue.poll(nextDue(), TimeUnit.MILLISECONDS);
+				if (alert == STOP) break;
+				if (alert != null) add(alert[0], alert[1]);
+				flush(false);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush(true);
+	}
+
+	private void add(String subject, String message) {
+		long now = now();
+		Window w = windows.get(subject);
+		if (w == null) {
+			w = new Window();
+			w.end = now + window;
+			windows.put(subject, w);
+			send(subject, message);
+			return;
+		}
+		w.messages.merge(message, 1, Integer::sum);
+		metrics.count("alerts_coalesced_total", 1);
+	}
+
+	/**
+	 * Send the digests whose window has ended, or all of them.
+	 */
+	private void flush(boolean all) {
+		long now = now();
+		for (Iterator<Map.Entry<String, Window>> it = windows.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Window> e = it.next();
+			Window w = e.getValue();
+			if (!all && w.end > now) continue;
+			if (w.messages.isEmpty()) {
+				// quiet for a whole window; the next alert goes out at once
+				it.remove();
+				continue;
+			}
+			send(e.getKey(), digest(w.messages));
+			w.messages.clear();
+			w.end = now + window;
+		}
+	}
+
+	private String digest(Map<String, Integer> messages) {
+		int total = 0;
+		StringBuilder lines = new StringBuilder();
+		int n = 0;
+		for (Map.Entry<String, Integer> e : messages.entrySet()) {
+			total += e.getValue();
+			if (n++ < MAX_DIGEST_LINES) {
+				lines.append(e.getValue() > 1 ? e.getValue() + " x " : "").append(e.getKey()).append('\n');
+			}
+		}
+		if (n > MAX_DIGEST_LINES) lines.append("... and ").append(n - MAX_DIGEST_LINES).append(" other messages\n");
+		String period = window >= 60000 ? TimeUnit.MILLISECONDS.toMinutes(window) + " minutes"
+				: TimeUnit.MILLISECONDS.toSeconds(window) + " seconds";
+		return total + " more alerts in the last " + period + ":\n\n" + lines;
+	}
+
+	private void send(String subject, String message) {
+		try {
+			sink.send(subject, message);
+			metrics.count("alerts_sent_total", 1);
+		} catch (Exception e) {
+			metrics.count("alerts_failed_total", 1);
+			logger.error("Could not send alert {}: {} ({})", subject, message, e.toString());
+		}
+	}
+
+	private long nextDue() {
+		long next = Long.MAX_VALUE;
+		for (Window w : windows.values()) next = Math.min(next, w.end);
+		return next == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, next - now());
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+}
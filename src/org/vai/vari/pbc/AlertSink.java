@@ -0,0 +1,10 @@
+package org.vai.vari.pbc;
+
+/**
+ * Where alerts end up, e.g. {@link MailAlertSink}. Called from the
+ * {@link AlertDispatcher} thread only.
+ */
+public interface AlertSink {
+
+	void send(String subject, String message) throws Exception;
+}
@@ -0,0 +1,227 @@
+package org.vai.vari.pbc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vai.vari.pbc.SimpleSyncServiceManager.StatusRecord;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Follows a source's change feed on a background thread and hands the changes
+ * to a consumer, as status records holding just the id and lastModified. A change
+ * is a JSON object with the id and lastModified fields; an array or
+ * <code>{"d":[...]}</code> envelope of them, told apart as {@link JsonArrayIterator}
+ * does, is several changes.
+ * <ul>
+ * <li><code>sse</code>: server-sent events, each event's data holding changes. Changes
+ * that arrive together are handed over together; a reconnect sends Last-Event-ID.</li>
+ * <li><code>longpoll</code>: each GET returns the changes since <code>starttime</code>, waiting
+ * until there are some, and is repeated straight away. Until a change has arrived,
+ * <code>starttime</code> comes from {@link #setSince(Supplier)}.</li>
+ * </ul>
+ * Dropped connections are retried after a delay that doubles up to a minute.
+ */
+public class ChangeFeed implements Closeable {
+
+	private static final long MIN_RECONNECT_DELAY = 1000;
+	private static final long MAX_RECONNECT_DELAY = 60000;
+
+	private final Logger logger = LoggerFactory.getLogger(ChangeFeed.class);
+	private final Client client;
+	private final URI uri;
+	private final String mode;
+	private final String idField;
+	private final String lastModifiedField;
+	private final JsonCodec codec;
+	private final Consumer<List<StatusRecord>> consumer;
+	private final Thread thread;
+	private MetricsRegistry metrics = MetricsRegistry.NONE;
+	private Supplier<String> since = () -> null;
+	private volatile boolean stopped;
+	private String lastEventId;
+	private String lastModified;
+	private long reconnectDelay = MIN_RECONNECT_DELAY;
+
+	/**
+	 * @param mode sse or longpoll
+	 */
+	public ChangeFeed(Client client, URI uri, String mode, String idField, String lastModifiedField, JsonCodec codec,
+			Consumer<List<StatusRecord>> consumer) {
+		if (!mode.equals("sse") && !mode.equals("longpoll")) throw new IllegalArgumentException("changeFeedMode : " + mode);
+		this.client = client;
+		this.uri = uri;
+		this.mode = mode;
+		this.idField = idField;
+		this.lastModifiedField = lastModifiedField;
+		this.codec = codec;
+		this.consumer = consumer;
+		this.thread = new Thread(this::follow, "change-feed");
+		thread.setDaemon(true);
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Where long polling starts until the feed has seen a change, e.g. the route's last committed
+	 * mruTimestamp; asked again before each request while it is null.
+	 */
+	public void setSince(Supplier<String> since) {
+		this.since = since;
+	}
+
+	public ChangeFeed start() {
+		thread.start();
+		return this;
+	}
+
+	@Override
+	public void close() {
+		stopped = true;
+		thread.interrupt();
+	}
+
+	private void follow() {
+		while (!stopped) {
+			try {
+				if (mode.equals("sse")) readEvents();
+				else readLongPoll();
+			} catch (IOException | RuntimeException e) {
+				// a ProcessingException, or one from the consumer; its changes are left to the polling cycle
+				if (stopped) break;
+				metrics.count("change_feed_errors_total", 1);
+				logger.warn("Change feed '{}' failed, reconnecting in {} ms: {}", uri, reconnectDelay, e.toString());
+				try {
+					Thread.sleep(reconnectDelay);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				reconnectDelay = Math.min(MAX_RECONNECT_DELAY, reconnectDelay * 2);
+			}
+		}
+	}
+
+	private void readEvents() throws IOException {
+		Invocation.Builder request = client.target(uri).request("text/event-stream");
+		if (lastEventId != null) request.header("Last-Event-ID", lastEventId);
+		Response response = request.get();
+		checkStatus(response);
+		reconnectDelay = MIN_RECONNECT_DELAY;
+		logger.info("Following change feed '{}'", uri);
+		try (BufferedInputStream in = new BufferedInputStream(response.readEntity(InputStream.class))) {
+			List<StatusRecord> changes = new ArrayList<>();
+			StringBuilder data = new StringBuilder();
+			for (String line = readLine(in); line != null && !stopped; line = readLine(in)) {
+				if (line.isEmpty()) {
+					// end of an event
+					if (data.length() > 0) parse(data.toString().getBytes(StandardCharsets.UTF_8), changes);
+					data.setLength(0);
+					// hand over everything that arrived together
+					if (!changes.isEmpty() && in.available() == 0) {
+						deliver(changes);
+						changes = new ArrayList<>();
+					}
+				} else if (line.startsWith("data:")) {
+					if (data.length() > 0) data.append('\n');
+					data.append(field(line));
+				} else if (line.startsWith("id:")) {
+					lastEventId = field(line);
+				}
+				// comments (keep-alives) and other fields are ignored
+			}
+			if (!changes.isEmpty()) deliver(changes);
+		}
+		if (!stopped) throw new IOException("stream ended");
+	}
+
+	private void readLongPoll() throws IOException {
+		UriBuilder builder = UriBuilder.fromUri(uri);
+		if (lastModified == null) lastModified = since.get();
+		if (lastModified != null) builder.queryParam("starttime", lastModified);
+		Response response = client.target(builder.build()).request().get();
+		checkStatus(response);
+		reconnectDelay = MIN_RECONNECT_DELAY;
+		List<StatusRecord> changes = new ArrayList<>();
+		parse(response.readEntity(byte[].class), changes);
+		for (StatusRecord change : changes) {
+			if (lastModified == null || change.lastModified.compareTo(lastModified) > 0) lastModified = change.lastModified;
+		}
+		if (!changes.isEmpty()) deliver(changes);
+	}
+
+	private void deliver(List<StatusRecord> changes) {
+		metrics.count("change_events_total", changes.size());
+		consumer.accept(changes);
+	}
+
+	private void parse(byte[] json, List<StatusRecord> changes) throws IOException {
+		try (JsonArrayIterator<JsonNode> nodes = new JsonArrayIterator<>(json, codec.treeReader)) {
+			for (JsonNode node : nodes) add(node, changes);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void add(JsonNode change, List<StatusRecord> changes) throws IOException {
+		JsonNode id = change.get(idField);
+		JsonNode modified = change.get(lastModifiedField);
+		if (id == null || modified == null) {
+			throw new IOException("change without " + idField + " and " + lastModifiedField + ": " + change);
+		}
+		StatusRecord record = new StatusRecord();
+		record.id = id.asText();
+		record.lastModified = modified.asText();
+		changes.add(record);
+	}
+
+	private static void checkStatus(Response response) throws IOException {
+		int status = response.getStatus();
+		if (status < 200 || status >= 300) {
+			response.close();
+			throw new IOException("unexpected response from change feed: " + status);
+		}
+	}
+
+	private static String field(String line) {
+		int colon = line.indexOf(':');
+		String value = line.substring(colon + 1);
+		return value.startsWith(" ") ? value.substring(1) : value;
+	}
+
+	/**
+	 * @return the next line without its CR, LF or CRLF ending, or null at the end of the stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c = in.read();
+		if (c < 0) return null;
+		while (c >= 0 && c != '\n' && c != '\r') {
+			line.write(c);
+			c = in.read();
+		}
+		if (c == '\r') {
+			in.mark(1);
+			if (in.read() != '\n') in.reset();
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
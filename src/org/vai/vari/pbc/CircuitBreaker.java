@@ -0,0 +1,80 @@
+package org.vai.vari.pbc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops requests to an endpoint after {@code threshold} failures in a row. Once
+ * {@code openTime} has passed, one trial request is let through: success closes the
+ * breaker again, failure keeps it open for another {@code openTime}. Every request let
+ * through must end in {@link #success()}, {@link #failure()} or {@link #release()}.
+ */
+public class CircuitBreaker {
+
+	private final String name;
+	private final int threshold;
+	private final long openTime;
+	private int failures;
+	private long openedAt = -1;
+	private boolean trialInFlight;
+
+	/**
+	 * @param threshold failures in a row that open the breaker (0 to never open it)
+	 * @param openTime milliseconds the breaker stays open
+	 */
+	public CircuitBreaker(String name, int threshold, long openTime) {
+		this.name = name;
+		this.threshold = threshold;
+		this.openTime = openTime;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return false while the breaker is open
+	 */
+	public synchronized boolean allowRequest() {
+		if (openedAt < 0) return true;
+		if (!trialInFlight && now() - openedAt >= openTime) {
+			trialInFlight = true;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized void success() {
+		failures = 0;
+		openedAt = -1;
+		trialInFlight = false;
+	}
+
+	/**
+	 * @return true if this failure opened the breaker
+	 */
+	public synchronized boolean failure() {
+		failures++;
+		boolean wasOpen = openedAt >= 0;
+		if (wasOpen || (threshold > 0 && failures >= threshold)) {
+			openedAt = now();
+			trialInFlight = false;
+		}
+		return !wasOpen && openedAt >= 0;
+	}
+
+	/**
+	 * Give back a request that got no answer either way, e.g. one that failed before it was
+	 * sent, so a trial can be let through again.
+	 */
+	public synchronized void release() {
+		trialInFlight = false;
+	}
+
+	public synchronized boolean isOpen() {
+		return openedAt >= 0;
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+}
@@ -0,0 +1,54 @@
+package org.vai.vari.pbc;
+
+import javax.ws.rs.client.Client;
+
+import org.apache.http.client.config.RequestConfig;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.filter.EncodingFilter;
+import org.glassfish.jersey.message.DeflateEncoder;
+import org.glassfish.jersey.message.GZipEncoder;
+
+/**
+ * Content encoding for a client's requests and responses:
+ * <ul>
+ * <li><code>none</code>: plain bodies both ways</li>
+ * <li><code>accept</code>: ask for gzip or deflate responses and decode them</li>
+ * <li><code>gzip</code>, <code>deflate</code>: also compress request bodies, which the server must accept</li>
+ * </ul>
+ * Pooled (Apache) clients accept compressed responses unless told <code>none</code>.
+ */
+public final class Compression {
+
+	private Compression() {
+	}
+
+	/**
+	 * Configure a client before its first request.
+	 * @param mode none, accept, gzip or deflate; null or empty for accept
+	 */
+	public static Client configure(Client client, String mode) {
+		if (mode == null || mode.isEmpty()) mode = "accept";
+		switch (mode) {
+		case "none":
+			client.property(ApacheClientProperties.REQUEST_CONFIG,
+					RequestConfig.custom().setContentCompressionEnabled(false).build());
+			break;
+		case "gzip":
+		case "deflate":
+			client.property(ClientProperties.USE_ENCODING, mode);
+			registerEncoders(client);
+			break;
+		case "accept":
+			registerEncoders(client);
+			break;
+		default:
+			throw new IllegalArgumentException("compression : " + mode);
+		}
+		return client;
+	}
+
+	private static void registerEncoders(Client client) {
+		client.register(EncodingFilter.class).register(GZipEncoder.class).register(DeflateEncoder.class);
+	}
+}
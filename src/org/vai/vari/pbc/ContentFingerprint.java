@@ -0,0 +1,78 @@
+package org.vai.vari.pbc;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * 64-bit FNV-1a hash of a normalized JSON document: its tokens, so formatting doesn't
+ * count, with the fields of every object taken in name order, so neither does field
+ * order. Top-level fields that change without the content changing can be left out.
+ * Not cryptographic: it only tells whether a document needs to be sent again.
+ */
+public final class ContentFingerprint {
+
+	private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	private ContentFingerprint() {
+	}
+
+	/**
+	 * @param ignoredFields top-level field names left out of the hash
+	 */
+	public static long of(byte[] json, JsonFactory factory, Collection<String> ignoredFields) throws IOException {
+		try (JsonParser parser = factory.createParser(json)) {
+			if (parser.nextToken() == null) return OFFSET_BASIS;
+			return value(parser, ignoredFields);
+		}
+	}
+
+	/**
+	 * Hash the value at the parser's current token, leaving the parser on its last token.
+	 */
+	private static long value(JsonParser parser, Collection<String> ignoredFields) throws IOException {
+		JsonToken t = parser.getCurrentToken();
+		long hash = (OFFSET_BASIS ^ t.ordinal()) * PRIME;
+		if (t == JsonToken.START_ARRAY) {
+			while (parser.nextToken() != JsonToken.END_ARRAY) hash = mix(hash, value(parser, Collections.emptySet()));
+		} else if (t == JsonToken.START_OBJECT) {
+			Map<String, Long> fields = new TreeMap<>();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if (ignoredFields.contains(name)) {
+					parser.skipChildren();
+				} else {
+					fields.put(name, value(parser, Collections.emptySet()));
+				}
+			}
+			for (Map.Entry<String, Long> field : fields.entrySet()) {
+				String name = field.getKey();
+				for (int i = 0; i < name.length(); i++) hash = mix(hash, name.charAt(i));
+				hash = mix(hash, field.getValue());
+			}
+		} else {
+			char[] text = parser.getTextCharacters();
+			int end = parser.getTextOffset() + parser.getTextLength();
+			for (int i = parser.getTextOffset(); i < end; i++) hash = mix(hash, text[i]);
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, char c) {
+		hash = (hash ^ (c & 0xff)) * PRIME;
+		return (hash ^ (c >>> 8)) * PRIME;
+	}
+
+	private static long mix(long hash, long value) {
+		for (int shift = 0; shift < 64; shift += 8) hash = (hash ^ ((value >>> shift) & 0xff)) * PRIME;
+		return hash;
+	}
+}
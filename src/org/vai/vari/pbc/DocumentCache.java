@@ -0,0 +1,73 @@
+package org.vai.vari.pbc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of source documents by id, so the transfer phase can send
+ * the documents already downloaded while resetting their sync status
+ * instead of fetching each one from the source again.
+ *
+ * An entry is only served for the lastModified it was cached with; the
+ * least recently used entries are dropped once either bound is reached.
+ */
+public class DocumentCache {
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<String, RawDocument> documents = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param maxEntries 0 to disable the cache
+	 */
+	public DocumentCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized void put(RawDocument doc) {
+		if (maxEntries <= 0 || doc.id == null || doc.bytes.length > maxBytes) return;
+		RawDocument old = documents.put(doc.id, doc);
+		if (old != null) bytes -= old.bytes.length;
+		bytes += doc.bytes.length;
+		Iterator<Map.Entry<String, RawDocument>> eldest = documents.entrySet().iterator();
+		while (documents.size() > maxEntries || bytes > maxBytes) {
+			bytes -= eldest.next().getValue().bytes.length;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * @return the cached document, or null if it's missing or cached for a different lastModified
+	 */
+	public synchronized RawDocument get(String id, String lastModified) {
+		RawDocument doc = documents.get(id);
+		if (doc == null || lastModified == null || !lastModified.equals(doc.lastModified)) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return doc;
+	}
+
+	public synchronized void remove(String id) {
+		RawDocument old = documents.remove(id);
+		if (old != null) bytes -= old.bytes.length;
+	}
+
+	public synchronized int size() {
+		return documents.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
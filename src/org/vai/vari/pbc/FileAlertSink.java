@@ -0,0 +1,27 @@
+package org.vai.vari.pbc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+
+/**
+ * Appends alerts to a local file, one block per alert.
+ */
+public class FileAlertSink implements AlertSink {
+
+	private final Path file;
+
+	public FileAlertSink(Path file) {
+		this.file = file;
+	}
+
+	@Override
+	public void send(String subject, String message) throws IOException {
+		String entry = LocalDateTime.now() + " " + subject + "\n" + message + "\n\n";
+		Files.write(file, entry.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+	}
+}
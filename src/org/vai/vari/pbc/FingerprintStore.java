@@ -0,0 +1,135 @@
+package org.vai.vari.pbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link ContentFingerprint} of the last version of each document the target
+ * accepted, kept in a local file so documents whose content hasn't changed are
+ * not sent again, even after a restart.
+ *
+ * The file is append-only, one <code>id&lt;tab&gt;hex hash</code> line per entry; the
+ * last line for an id wins and a line torn by a crash is dropped on open. Like
+ * {@link SyncCheckpoint}, entries are only written and fsynced by {@link #commit()},
+ * and the file is rewritten with just the live entries once it holds more than
+ * twice as many lines as ids.
+ */
+public class FingerprintStore implements Closeable {
+
+	private final Path file;
+	private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+	private final Map<String, Long> uncommitted = new LinkedHashMap<>();
+	private FileChannel channel;
+	private int lines;
+
+	private FingerprintStore(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load the fingerprints, creating the file if it doesn't exist.
+	 */
+	public static FingerprintStore open(Path file) throws IOException {
+		FingerprintStore store = new FingerprintStore(file);
+		store.load();
+		return store;
+	}
+
+	/**
+	 * @return true if the target already has this content for the id
+	 */
+	public boolean matches(String id, long fingerprint) {
+		Long previous = fingerprints.get(id);
+		return previous != null && previous == fingerprint;
+	}
+
+	/**
+	 * Record the content the target accepted, written out by the next commit. Safe to call concurrently.
+	 */
+	public synchronized void put(String id, long fingerprint) {
+		fingerprints.put(id, fingerprint);
+		uncommitted.put(id, fingerprint);
+	}
+
+	public int size() {
+		return fingerprints.size();
+	}
+
+	/**
+	 * Append the fingerprints recorded since the last commit, and fsync.
+	 */
+	public synchronized void commit() throws IOException {
+		if (uncommitted.isEmpty()) return;
+		StringBuilder entries = new StringBuilder();
+		for (Map.Entry<String, Long> e : uncommitted.entrySet()) append(entries, e.getKey(), e.getValue());
+		lines += uncommitted.size();
+		uncommitted.clear();
+		if (lines > 2 * fingerprints.size() + 1000) {
+			compact();
+		} else {
+			write(channel, entries);
+			channel.force(false);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) channel.close();
+		channel = null;
+	}
+
+	private void load() throws IOException {
+		int good = 0;
+		if (Files.exists(file)) {
+			byte[] content = Files.readAllBytes(file);
+			int start = 0;
+			for (int i = 0; i < content.length; i++) {
+				if (content[i] != '\n') continue;
+				String line = new String(content, start, i - start, StandardCharsets.UTF_8);
+				int tab = line.lastIndexOf('\t');
+				if (tab > 0) fingerprints.put(line.substring(0, tab), Long.parseUnsignedLong(line.substring(tab + 1), 16));
+				lines++;
+				start = good = i + 1;
+			}
+		}
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// drop a partial last line left by a crash
+		channel.truncate(good);
+		channel.position(good);
+	}
+
+	private void compact() throws IOException {
+		StringBuilder entries = new StringBuilder();
+		for (Map.Entry<String, Long> e : fingerprints.entrySet()) append(entries, e.getKey(), e.getValue());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(out, entries);
+			out.force(false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel.close();
+		channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		lines = fingerprints.size();
+	}
+
+	private static void append(StringBuilder entries, String id, long fingerprint) {
+		entries.append(id).append('\t').append(Long.toHexString(fingerprint)).append('\n');
+	}
+
+	private static void write(FileChannel channel, CharSequence entries) throws IOException {
+		ByteBuffer buffer = StandardCharsets.UTF_8.encode(entries.toString());
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+}
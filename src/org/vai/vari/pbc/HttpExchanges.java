@@ -0,0 +1,112 @@
+package org.vai.vari.pbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Request and response plumbing shared by the local stand-ins for the source, target
+ * and sync endpoints ({@link ReplayEndpoints}, and MockEndpoints for the benchmarks).
+ */
+public final class HttpExchanges {
+
+	static {
+		// headers and body go out as separate writes; without this, Nagle and delayed ACKs add ~40 ms per request
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private HttpExchanges() {
+	}
+
+	/**
+	 * @return a server, not yet started, that answers on {@code executor}
+	 */
+	public static HttpServer createServer(InetSocketAddress address, Executor executor) throws IOException {
+		HttpServer server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		return server;
+	}
+
+	/**
+	 * @return the decoded value of a query parameter, or null if the request has none
+	 */
+	public static String queryParam(HttpExchange exchange, String name) throws IOException {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) return null;
+		for (String param : query.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq > 0 && param.substring(0, eq).equals(name)) {
+				return URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a query parameter as a number, 0 if missing or not one
+	 */
+	public static int intParam(HttpExchange exchange, String name) throws IOException {
+		String value = queryParam(exchange, name);
+		try {
+			return value == null ? 0 : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the request body, decoded
+	 */
+	public static byte[] readBody(HttpExchange exchange) throws IOException {
+		return decode(exchange, readAll(exchange.getRequestBody()));
+	}
+
+	/**
+	 * @param body as received, encoded as the request's Content-Encoding says
+	 */
+	public static byte[] decode(HttpExchange exchange, byte[] body) throws IOException {
+		String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+		if ("gzip".equals(encoding)) return readAll(new GZIPInputStream(new ByteArrayInputStream(body)));
+		if ("deflate".equals(encoding)) return readAll(new InflaterInputStream(new ByteArrayInputStream(body)));
+		return body;
+	}
+
+	public static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) out.write(chunk, 0, n);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Send a JSON response and end the exchange.
+	 */
+	public static void reply(HttpExchange exchange, int code, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		// -1 for no body at all; 0 would mean chunked
+		exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+		if (body.length > 0) exchange.getResponseBody().write(body);
+		exchange.close();
+	}
+
+	/**
+	 * Wait before answering, like a remote endpoint would.
+	 */
+	public static void delay(long latencyMs) {
+		if (latencyMs <= 0) return;
+		try {
+			Thread.sleep(latencyMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package org.vai.vari.pbc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The version of each document being transferred, and the newest one written, keyed by
+ * the document's URI on the target, so overlapping transfers of one document collapse onto
+ * its newest lastModified:
+ * <ul>
+ * <li>a version the same as or older than one in flight, or older than one written, is not
+ * claimed; the newer transfer covers it</li>
+ * <li>a newer version waits for an older one in flight to be released, so the two
+ * never reach the target out of order</li>
+ * </ul>
+ * Claims are compare-and-set on a {@link ConcurrentHashMap}, without locks; only
+ * a newer version waiting for an older one blocks. A key is only in flight while a
+ * transfer holds it. The versions written are kept for the most recently written
+ * {@code maxWritten} keys, in stripes locked on their own. Versions are compared like
+ * lastModified everywhere else, as strings.
+ */
+public class InFlightRegistry {
+
+	private static final int STRIPES = 16;
+
+	/**
+	 * A version held by one transfer until {@link InFlightRegistry#release(Claim)}.
+	 */
+	public static final class Claim {
+		private final String key;
+		private final String lastModified;
+		private final CompletableFuture<Void> released = new CompletableFuture<>();
+		private volatile boolean written;
+
+		private Claim(String key, String lastModified) {
+			this.key = key;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * The target now has this version (or already had its content).
+		 */
+		public void written() {
+			written = true;
+		}
+	}
+
+	private final ConcurrentMap<String, Claim> versions = new ConcurrentHashMap<>();
+	private final Map<String, String>[] written;
+
+	/**
+	 * @param maxWritten keys whose newest written version is remembered
+	 */
+	@SuppressWarnings("unchecked")
+	public InFlightRegistry(int maxWritten) {
+		final int perStripe = Math.max(1, maxWritten / STRIPES);
+		written = new Map[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			written[i] = new LinkedHashMap<String, String>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+					return size() > perStripe;
+				}
+			};
+		}
+	}
+
+	/**
+	 * @param key the document's URI on the target
+	 * @return the claim to release once the transfer is over, or null if this version is superseded
+	 */
+	public Claim claim(String key, String lastModified) {
+		if (isOlderThanWritten(key, lastModified)) return null;
+		Claim claim = new Claim(key, lastModified);
+		while (true) {
+			Claim current = versions.putIfAbsent(key, claim);
+			if (current == null) break;
+			if (current.lastModified.compareTo(lastModified) >= 0) return null;
+			// let the older version land first; its entry is gone once it is released
+			current.released.join();
+		}
+		// a newer version may have been written and released since the first check
+		if (isOlderThanWritten(key, lastModified)) {
+			release(claim);
+			return null;
+		}
+		return claim;
+	}
+
+	/**
+	 * End a transfer, and wake up a newer version waiting for it. A claim that was
+	 * {@link Claim#written()} is remembered as the key's newest version written.
+	 */
+	public void release(Claim claim) {
+		if (claim.written) {
+			Map<String, String> stripe = stripe(claim.key);
+			synchronized (stripe) {
+				String last = stripe.get(claim.key);
+				if (last == null || last.compareTo(claim.lastModified) < 0) stripe.put(claim.key, claim.lastModified);
+			}
+		}
+		// only once the written version is on record, so a claim checking after this finds it
+		versions.remove(claim.key, claim);
+		claim.released.complete(null);
+	}
+
+	/**
+	 * @return the newest version written for a key, or null if none is remembered
+	 */
+	public String getWritten(String key) {
+		Map<String, String> stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.get(key);
+		}
+	}
+
+	private boolean isOlderThanWritten(String key, String lastModified) {
+		String last = getWritten(key);
+		return last != null && last.compareTo(lastModified) > 0;
+	}
+
+	private Map<String, String> stripe(String key) {
+		return written[(key.hashCode() & 0x7fffffff) % STRIPES];
+	}
+}
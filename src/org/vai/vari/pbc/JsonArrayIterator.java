@@ -0,0 +1,251 @@
+package org.vai.vari.pbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Walks a <code>{"d":[...]}</code> envelope (or a bare array) token by
+ * token and binds one element at a time, so memory is bounded by the size
+ * of a single element rather than the whole response.
+ *
+ * An envelope is an object whose only field is an array. Read from bytes, the
+ * object is looked ahead through; read from a stream, the array is held back
+ * until it ends, and one longer than {@link #ENVELOPE_LOOKAHEAD} bytes is taken
+ * for an envelope and checked once it ends.
+ *
+ * Any other document shape is read as a single element; see
+ * {@link #isSingleDocument()}, or with a custom {@link ElementReader} as
+ * the values of its fields. The underlying stream is closed once the
+ * elements are exhausted, or by {@link #close()}.
+ */
+public class JsonArrayIterator<T> implements Iterator<T>, Iterable<T>, Closeable {
+
+	/**
+	 * Reads one element, starting at its first token and leaving the parser on its last.
+	 */
+	public interface ElementReader<T> {
+		T read(JsonParser parser) throws IOException;
+	}
+
+	/** Bytes of a streamed object's first array held back to tell an envelope from a document. */
+	static final int ENVELOPE_LOOKAHEAD = 1 << 20;
+
+	private static final JsonFactory LOOKAHEAD_FACTORY = new JsonFactory();
+
+	private JsonParser parser;
+	private final ElementReader<T> elements;
+	private final boolean singleDocument;
+	private T single;
+	private boolean done;
+	private boolean advanced;
+	// iterating the field values of an object rather than the elements of an array
+	private boolean objectValues;
+	private boolean envelope;
+	// an envelope taken as one before its end was seen
+	private boolean checkEnvelopeEnd;
+
+	public JsonArrayIterator(InputStream in, ObjectReader reader) throws IOException {
+		this(reader.getFactory().createParser(in), null, reader, reader::readValue);
+	}
+
+	public JsonArrayIterator(byte[] json, ObjectReader reader) throws IOException {
+		this(reader.getFactory().createParser(json), json, reader, reader::readValue);
+	}
+
+	/**
+	 * Iterate the elements of an envelope or array with a custom element reader.
+	 * Any other object is iterated as its field values.
+	 * @throws IOException if the document is neither an array nor an object
+	 */
+	public JsonArrayIterator(JsonParser parser, ElementReader<T> elements) throws IOException {
+		this(parser, null, null, elements);
+	}
+
+	/**
+	 * Iterate the elements of an envelope or array of JSON bytes with a custom element reader.
+	 * Any other object is iterated as its field values.
+	 * @throws IOException if the document is neither an array nor an object
+	 */
+	public JsonArrayIterator(byte[] json, JsonFactory factory, ElementReader<T> elements) throws IOException {
+		this(factory.createParser(json), json, null, elements);
+	}
+
+	/**
+	 * @param json the bytes the parser reads, or null if it reads a stream
+	 */
+	private JsonArrayIterator(JsonParser parser, byte[] json, ObjectReader reader, ElementReader<T> elements)
+			throws IOException {
+		this.parser = parser;
+		this.elements = elements;
+		JsonToken t = parser.nextToken();
+		if (t == null) {
+			singleDocument = false;
+			close();
+		} else if (t == JsonToken.START_ARRAY) {
+			singleDocument = false;
+		} else if (reader == null && t != JsonToken.START_OBJECT) {
+			close();
+			throw new IOException("expected an array of documents");
+		} else if (t != JsonToken.START_OBJECT) {
+			singleDocument = true;
+			single = reader.readValue(parser);
+			close();
+		} else if (parser.nextToken() != JsonToken.FIELD_NAME) {
+			// an empty object
+			singleDocument = reader != null;
+			if (reader != null) single = reader.readValue(JsonNodeFactory.instance.objectNode());
+			close();
+		} else {
+			String firstField = parser.getCurrentName();
+			if (parser.nextToken() == JsonToken.START_ARRAY) lookAhead(json);
+			if (envelope) {
+				// stream the elements of its array
+				singleDocument = false;
+			} else if (reader == null) {
+				singleDocument = false;
+				objectValues = true;
+				// the parser is already on the first value
+				advanced = true;
+			} else {
+				// a single document whose first field has already been consumed, so rebuild it as a tree
+				singleDocument = true;
+				ObjectNode doc = JsonNodeFactory.instance.objectNode();
+				doc.set(firstField, reader.readTree(this.parser));
+				while (this.parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = this.parser.getCurrentName();
+					this.parser.nextToken();
+					doc.set(name, reader.readTree(this.parser));
+				}
+				single = reader.readValue(doc);
+				close();
+			}
+		}
+	}
+
+	/**
+	 * With the parser on the array of an object's first field, find out whether it is the object's only field.
+	 * The parser is left on the same token, though a streamed one is replaced by one replaying what was read ahead.
+	 */
+	private void lookAhead(byte[] json) throws IOException {
+		if (json != null) {
+			// a second pass over the object's start, skipping the array
+			try (JsonParser ahead = LOOKAHEAD_FACTORY.createParser(json)) {
+				for (int i = 0; i < 3; i++) ahead.nextToken();
+				ahead.skipChildren();
+				envelope = ahead.nextToken() == JsonToken.END_OBJECT;
+			}
+			return;
+		}
+		TokenBuffer held = new TokenBuffer(parser);
+		long start = parser.getTokenLocation().getByteOffset();
+		int depth = 0;
+		for (JsonToken t = parser.getCurrentToken(); ; t = parser.nextToken()) {
+			if (t == null) throw new IOException("unexpected end of input");
+			held.copyCurrentEvent(parser);
+			if (t.isStructStart()) depth++;
+			else if (t.isStructEnd()) depth--;
+			if (depth == 0) break;
+			if (parser.getCurrentLocation().getByteOffset() - start > ENVELOPE_LOOKAHEAD) {
+				// too long for a field of one document
+				envelope = true;
+				checkEnvelopeEnd = true;
+				parser = JsonParserSequence.createFlattened(false, held.asParser(), parser);
+				parser.nextToken();
+				return;
+			}
+		}
+		// the array has been held back whole, and the parser moves on to what follows it
+		envelope = parser.nextToken() == JsonToken.END_OBJECT;
+		parser = JsonParserSequence.createFlattened(!envelope, held.asParser(), parser);
+		parser.nextToken();
+	}
+
+	/**
+	 * @return true if the response was a single document rather than an array of them
+	 */
+	public boolean isSingleDocument() {
+		return singleDocument;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (singleDocument) return single != null;
+		if (done) return false;
+		if (!advanced) {
+			try {
+				JsonToken t = parser.nextToken();
+				if (objectValues && t == JsonToken.FIELD_NAME) {
+					t = parser.nextToken();
+				}
+				if (t == null || t == JsonToken.END_ARRAY || t == JsonToken.END_OBJECT) {
+					if (checkEnvelopeEnd && t == JsonToken.END_ARRAY && parser.nextToken() != JsonToken.END_OBJECT) {
+						close();
+						throw new IOException("an object with fields after an array of more than " + ENVELOPE_LOOKAHEAD
+								+ " bytes, read as a {\"d\":[...]} envelope");
+					}
+					close();
+					return false;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			advanced = true;
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		if (singleDocument) {
+			T t = single;
+			single = null;
+			return t;
+		}
+		advanced = false;
+		try {
+			return elements.read(parser);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+				.onClose(() -> {
+					try {
+						close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+	}
+
+	@Override
+	public void close() throws IOException {
+		done = true;
+		if (parser != null) parser.close();
+	}
+}
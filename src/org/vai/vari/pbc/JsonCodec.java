@@ -0,0 +1,82 @@
+package org.vai.vari.pbc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+
+import org.vai.vari.pbc.SimpleSyncServiceManager.StatusRecord;
+import org.vai.vari.pbc.SimpleSyncServiceManager.WrappedJsonArray;
+import org.vai.vari.pbc.StatusWriter.BatchResult;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Shared JSON readers and writers. ObjectReader and ObjectWriter are immutable
+ * and thread-safe, so one instance serves every thread; building them once
+ * keeps the serializer caches warm instead of paying for a new ObjectMapper
+ * per document.
+ */
+public class JsonCodec {
+
+	public final ObjectReader treeReader;
+	public final ObjectReader statusReader;
+	public final ObjectReader statusArrayReader;
+	public final ObjectReader batchResultReader;
+	public final ObjectWriter writer;
+	public final ObjectWriter prettyWriter;
+	private final ObjectMapper mapper;
+
+	public JsonCodec() {
+		mapper = new ObjectMapper();
+		treeReader = mapper.readerFor(JsonNode.class);
+		statusReader = mapper.readerFor(StatusRecord.class);
+		statusArrayReader = mapper.readerFor(new TypeReference<WrappedJsonArray<StatusRecord>>() {});
+		batchResultReader = mapper.readerFor(new TypeReference<WrappedJsonArray<BatchResult>>() {});
+		writer = mapper.writer();
+		prettyWriter = mapper.writerWithDefaultPrettyPrinter();
+	}
+
+	public JsonFactory getFactory() {
+		return mapper.getFactory();
+	}
+
+	/**
+	 * Run each reader and writer once, and the streaming document parsers, so their (de)serializers
+	 * are built and classes loaded before the first cycle.
+	 * @return this
+	 */
+	public JsonCodec warm() {
+		try {
+			StatusRecord status = new StatusRecord();
+			status.id = "id";
+			status.lastModified = "2016-01-01T00:00:00";
+			byte[] statusJson = writer.writeValueAsBytes(status);
+			statusReader.readValue(statusJson);
+			byte[] statusArrayJson = writer.writeValueAsBytes(Collections.singletonMap("d", Collections.singletonList(status)));
+			statusArrayReader.readValue(statusArrayJson);
+			batchResultReader.readValue("{\"d\":[{\"id\":\"id\",\"status\":200}]}");
+			JsonNode tree = treeReader.readValue(statusArrayJson);
+			writer.writeValueAsBytes(tree);
+			prettyWriter.writeValueAsString(tree);
+			// source pages, parsed one document at a time
+			final byte[] page = writer.writeValueAsBytes(Collections.singletonList(status));
+			final JsonFactory factory = getFactory();
+			try (JsonArrayIterator<RawDocument> docs = new JsonArrayIterator<>(page, factory,
+					p -> RawDocument.slice(p, page, "id", "lastModified"))) {
+				while (docs.hasNext()) docs.next();
+			}
+			try (JsonArrayIterator<RawDocument> docs = new JsonArrayIterator<>(factory.createParser(page),
+					p -> RawDocument.copy(p, factory, "id", "lastModified"))) {
+				while (docs.hasNext()) ContentFingerprint.of(docs.next().bytes, factory, Collections.singleton("lastModified"));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return this;
+	}
+}
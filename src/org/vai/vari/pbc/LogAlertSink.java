@@ -0,0 +1,17 @@
+package org.vai.vari.pbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs alerts instead of sending them, e.g. for testing without an SMTP relay.
+ */
+public class LogAlertSink implements AlertSink {
+
+	private final Logger logger = LoggerFactory.getLogger(LogAlertSink.class);
+
+	@Override
+	public void send(String subject, String message) {
+		logger.warn("ALERT {}: {}", subject, message);
+	}
+}
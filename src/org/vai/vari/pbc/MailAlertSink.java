@@ -0,0 +1,40 @@
+package org.vai.vari.pbc;
+
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends alerts by mail, through one session for the life of the service.
+ */
+public class MailAlertSink implements AlertSink {
+
+	private final Session session;
+	private final String sender;
+	private final String recipients;
+
+	public MailAlertSink(String smtpHost, String sender, String recipients) {
+		Properties props = new Properties();
+		props.put("mail.smtp.host", smtpHost);
+		// a slow relay holds up later alerts, never the sync
+		props.put("mail.smtp.connectiontimeout", "30000");
+		props.put("mail.smtp.timeout", "30000");
+		this.session = Session.getInstance(props, null);
+		this.sender = sender;
+		this.recipients = recipients;
+	}
+
+	@Override
+	public void send(String subject, String message) throws MessagingException {
+		MimeMessage msg = new MimeMessage(session);
+		msg.setFrom(sender);
+		msg.setRecipients(Message.RecipientType.TO, recipients);
+		msg.setSubject(subject);
+		msg.setText(message);
+		Transport.send(msg);
+	}
+}
@@ -0,0 +1,42 @@
+package org.vai.vari.pbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a {@link SimpleMetricsRegistry} at <code>/metrics</code> in the Prometheus text format.
+ */
+public class MetricsHttpExporter implements Closeable {
+
+	private final HttpServer server;
+
+	public MetricsHttpExporter(SimpleMetricsRegistry registry, String host, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext("/metrics", exchange -> {
+			StringWriter text = new StringWriter();
+			registry.writeTo(text);
+			byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,83 @@
+package org.vai.vari.pbc;
+
+/**
+ * Where the service reports its timings and counts. Names may carry
+ * Prometheus-style labels, e.g. <code>target_responses_total{status="500"}</code>.
+ * Implementations must be safe to call from several threads.
+ */
+public interface MetricsRegistry {
+
+	/**
+	 * Add a sample, e.g. a latency in microseconds, to a histogram.
+	 */
+	void record(String name, long value);
+
+	/**
+	 * Add to a counter.
+	 */
+	void count(String name, long delta);
+
+	/**
+	 * Set a gauge.
+	 */
+	void gauge(String name, long value);
+
+	/**
+	 * Discards everything.
+	 */
+	MetricsRegistry NONE = new MetricsRegistry() {
+		@Override
+		public void record(String name, long value) {
+		}
+
+		@Override
+		public void count(String name, long delta) {
+		}
+
+		@Override
+		public void gauge(String name, long value) {
+		}
+	};
+
+	/**
+	 * @return a registry that adds the label {@code key="value"} to every name before passing it on
+	 */
+	static MetricsRegistry withLabel(MetricsRegistry registry, String key, String value) {
+		String label = key + "=\"" + value + "\"";
+		return new MetricsRegistry() {
+			@Override
+			public void record(String name, long value) {
+				registry.record(label(name), value);
+			}
+
+			@Override
+			public void count(String name, long delta) {
+				registry.count(label(name), delta);
+			}
+
+			@Override
+			public void gauge(String name, long value) {
+				registry.gauge(label(name), value);
+			}
+
+			private String label(String name) {
+				return name.endsWith("}") ? name.substring(0, name.length() - 1) + "," + label + "}"
+						: name + "{" + label + "}";
+			}
+		};
+	}
+
+	/**
+	 * @return microseconds since a {@link System#nanoTime()} reading
+	 */
+	static long micros(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000;
+	}
+
+	/**
+	 * @return the name labelled with an HTTP status code
+	 */
+	static String status(String name, int status) {
+		return name + "{status=\"" + status + "\"}";
+	}
+}
@@ -0,0 +1,270 @@
+package org.vai.vari.pbc;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.Response;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.SslConfigurator;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+
+/**
+ * Builds Jersey clients on top of pooled, keep-alive Apache connections.
+ *
+ * Clients are meant to be built once and reused across polls; responses
+ * must be read or closed so that their connection goes back to the pool.
+ * Keystores are loaded once per file, and clients with the same keystore share
+ * one SSLContext, so its TLS session cache lets their connections resume
+ * sessions instead of doing a full handshake each. They also share one
+ * connection pool, whatever route they belong to, so the pool limits hold
+ * for every client with that keystore together.
+ */
+public class PooledClientFactory implements Closeable {
+
+	private static final int SSL_SESSION_CACHE_SIZE = 1000;
+	private static final int SSL_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+	private final int maxConnectionsPerRoute;
+	private final int maxConnections;
+	private final int idleTimeoutSeconds;
+	private final List<Client> clients = new ArrayList<>();
+	private final List<IdleConnectionEvictor> evictors = new ArrayList<>();
+	private final Map<String, KeyStore> keyStores = new HashMap<>();
+	// by keystore, null for none
+	private final Map<KeyStore, SSLContext> sslContexts = new IdentityHashMap<>();
+	private final Map<KeyStore, Pool> pools = new IdentityHashMap<>();
+	private final Map<Client, PoolingHttpClientConnectionManager> connectionManagers = new IdentityHashMap<>();
+
+	/**
+	 * The connections of every client with one keystore, and the hostname verifiers of those clients.
+	 */
+	private static class Pool {
+		final List<HostnameVerifier> verifiers = new CopyOnWriteArrayList<>();
+		PoolingHttpClientConnectionManager connectionManager;
+
+		/**
+		 * A connection is made for one client, and is good for any client in the pool that accepts its host.
+		 */
+		boolean verify(String hostname, SSLSession session) {
+			for (HostnameVerifier verifier : verifiers) {
+				if (verifier.verify(hostname, session)) return true;
+			}
+			return false;
+		}
+	}
+
+	public PooledClientFactory(int maxConnectionsPerRoute, int maxConnections, int idleTimeoutSeconds) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		this.maxConnections = maxConnections;
+		this.idleTimeoutSeconds = idleTimeoutSeconds;
+	}
+
+	/**
+	 * Load a PKCS #12 file.
+	 */
+	public static KeyStore loadKeyStore(File file, String password) throws GeneralSecurityException, IOException {
+		KeyStore keystore = KeyStore.getInstance("PKCS12");
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			keystore.load(in, password == null ? null : password.toCharArray());
+		}
+		return keystore;
+	}
+
+	/**
+	 * @return the PKCS #12 file's keystore, loaded the first time it is asked for
+	 */
+	public synchronized KeyStore getKeyStore(String path, String password) throws GeneralSecurityException, IOException {
+		KeyStore keystore = keyStores.get(path);
+		if (keystore == null) {
+			keystore = loadKeyStore(new File(path), password);
+			keyStores.put(path, keystore);
+		}
+		return keystore;
+	}
+
+	/**
+	 * @param keystore PKCS #12 peer certificate, or null for none
+	 */
+	public synchronized Client newClient(KeyStore keystore, String password, HostnameVerifier hostnameVerifier) {
+		SSLContext sslContext = sslContexts.get(keystore);
+		if (sslContext == null) {
+			SslConfigurator ssl = SslConfigurator.newInstance();
+			if (keystore != null) {
+				ssl.keyStore(keystore).keyPassword(password == null ? "" : password);
+			}
+			sslContext = ssl.createSSLContext();
+			sslContext.getClientSessionContext().setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+			sslContext.getClientSessionContext().setSessionTimeout(SSL_SESSION_TIMEOUT_SECONDS);
+			sslContexts.put(keystore, sslContext);
+		}
+		Pool pool = pools.get(keystore);
+		if (pool == null) {
+			pool = new Pool();
+			Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+					.register("http", PlainConnectionSocketFactory.getSocketFactory())
+					.register("https", new SSLConnectionSocketFactory(sslContext,
+							new String[] { "TLSv1.2" }, null, pool::verify))
+					.build();
+
+			pool.connectionManager = new StatelessConnectionManager(registry);
+			pool.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+			pool.connectionManager.setMaxTotal(maxConnections);
+			// re-check connections the server may have dropped while they sat idle
+			pool.connectionManager.setValidateAfterInactivity(2000);
+
+			if (idleTimeoutSeconds > 0) {
+				IdleConnectionEvictor evictor = new IdleConnectionEvictor(pool.connectionManager,
+						idleTimeoutSeconds, TimeUnit.SECONDS, idleTimeoutSeconds, TimeUnit.SECONDS);
+				evictor.start();
+				evictors.add(evictor);
+			}
+			pools.put(keystore, pool);
+		}
+		pool.verifiers.add(hostnameVerifier);
+		PoolingHttpClientConnectionManager connectionManager = pool.connectionManager;
+
+		ClientConfig config = new ClientConfig()
+				.connectorProvider(new ApacheConnectorProvider())
+				.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager)
+				// a target with filters of its own gets its own connector, which would shut the pool down when collected
+				.property(ApacheClientProperties.CONNECTION_MANAGER_SHARED, true);
+		Client client = ClientBuilder.newBuilder()
+				.withConfig(config)
+				.sslContext(sslContext)
+				.hostnameVerifier(hostnameVerifier)
+				.build();
+		clients.add(client);
+		connectionManagers.put(client, connectionManager);
+		return client;
+	}
+
+	/**
+	 * A pool that leases and releases every connection without state. With a client certificate the
+	 * HttpClient tags each connection with the TLS principal as its user token, and a connection with a
+	 * token is only leased to requests that ask for it, which a new request never does, so none would be
+	 * reused. This connector version gives no way to call disableConnectionState() on its HttpClientBuilder.
+	 */
+	private static class StatelessConnectionManager extends PoolingHttpClientConnectionManager {
+
+		StatelessConnectionManager(Registry<ConnectionSocketFactory> registry) {
+			super(registry, null, null, null, -1, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+			return super.requestConnection(route, null);
+		}
+
+		@Override
+		public void releaseConnection(HttpClientConnection connection, Object state, long keepAlive, TimeUnit timeUnit) {
+			super.releaseConnection(connection, null, keepAlive, timeUnit);
+		}
+	}
+
+	/** Request property set on warm-up requests, which never reach the network. */
+	public static final String WARM_UP = PooledClientFactory.class.getName() + ".warmUp";
+
+	/**
+	 * Run a request through the client's filters and readers, answered before it reaches the network, so
+	 * the classes on the request path are loaded and initialized ahead of the first real request.
+	 */
+	public static void warm(Client client, URI uri) {
+		ClientRequestFilter answer = new ClientRequestFilter() {
+			public void filter(ClientRequestContext request) {
+				request.setProperty(WARM_UP, Boolean.TRUE);
+				request.abortWith(Response.ok("[]").build());
+			}
+		};
+		client.target(uri).register(answer).request().get().readEntity(String.class);
+	}
+
+	/**
+	 * Open connections to a URI's host ahead of time, connecting (and completing the TLS handshake) without
+	 * sending a request, and leave them idle in the client's pool for its first requests.
+	 * @param client built by this factory
+	 * @return connections opened
+	 */
+	public int preconnect(Client client, URI uri, int connections, int timeoutMillis) throws IOException {
+		PoolingHttpClientConnectionManager connectionManager;
+		synchronized (this) {
+			connectionManager = connectionManagers.get(client);
+		}
+		if (connectionManager == null) return 0;
+		// the route the client will ask the pool for, with the default port filled in
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		int port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+		HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+		HttpClientContext context = HttpClientContext.create();
+		List<HttpClientConnection> leased = new ArrayList<>();
+		int opened = 0;
+		try {
+			// lease them all before connecting, so each one is a separate connection
+			for (int i = 0; i < Math.min(connections, maxConnectionsPerRoute); i++) {
+				leased.add(connectionManager.requestConnection(route, null).get(timeoutMillis, TimeUnit.MILLISECONDS));
+			}
+			for (HttpClientConnection connection : leased) {
+				if (connection.isOpen()) continue;
+				connectionManager.connect(connection, route, timeoutMillis, context);
+				connectionManager.routeComplete(connection, route, context);
+				opened++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			// kept until the idle connection evictor closes them
+			for (HttpClientConnection connection : leased) {
+				connectionManager.releaseConnection(connection, null, -1, TimeUnit.MILLISECONDS);
+			}
+		}
+		return opened;
+	}
+
+	@Override
+	public synchronized void close() {
+		for (IdleConnectionEvictor evictor : evictors) evictor.shutdown();
+		evictors.clear();
+		for (Client client : clients) client.close();
+		clients.clear();
+		for (Pool pool : pools.values()) pool.connectionManager.shutdown();
+		pools.clear();
+		connectionManagers.clear();
+	}
+}
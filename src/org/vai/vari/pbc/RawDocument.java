@@ -0,0 +1,212 @@
+package org.vai.vari.pbc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+
+/**
+ * A document kept as its source bytes, with only the id (and optionally
+ * lastModified) fields pulled out, so it can be forwarded without building
+ * a tree or re-serializing it.
+ */
+public class RawDocument {
+
+	public final String id;
+	public final String lastModified;
+	public final byte[] bytes;
+
+	public RawDocument(String id, String lastModified, byte[] bytes) {
+		this.id = id;
+		this.lastModified = lastModified;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * The whole body is one document.
+	 * @param idField null if no id is needed
+	 */
+	public static RawDocument whole(byte[] body, JsonFactory factory, String idField) throws IOException {
+		try (JsonParser parser = factory.createParser(body)) {
+			String[] fields = new String[2];
+			if (parser.nextToken() == JsonToken.START_OBJECT && idField != null) {
+				findFields(parser, idField, null, fields, false);
+			}
+			return new RawDocument(fields[0], null, body);
+		}
+	}
+
+	/**
+	 * Slice the element at the parser's current token out of the buffer the parser was created on.
+	 * @param lastModifiedField null if not needed
+	 */
+	public static RawDocument slice(JsonParser parser, byte[] source, String idField, String lastModifiedField)
+			throws IOException {
+		int start = (int) parser.getTokenLocation().getByteOffset();
+		String[] fields = new String[2];
+		if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+			findFields(parser, idField, lastModifiedField, fields, true);
+		} else {
+			parser.skipChildren();
+		}
+		int end = (int) parser.getCurrentLocation().getByteOffset();
+		return new RawDocument(fields[0], fields[1], Arrays.copyOfRange(source, start, end));
+	}
+
+	/**
+	 * Copy the element at the parser's current token token by token, for parsers reading a stream.
+	 * @param lastModifiedField null if not needed
+	 */
+	public static RawDocument copy(JsonParser parser, JsonFactory factory, String idField, String lastModifiedField)
+			throws IOException {
+		ByteArrayBuilder buffer = new ByteArrayBuilder();
+		String id = null;
+		String lastModified = null;
+		try (JsonGenerator generator = factory.createGenerator(buffer)) {
+			int depth = 0;
+			JsonToken t = parser.getCurrentToken();
+			do {
+				if (depth == 1 && t == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					boolean isId = name.equals(idField);
+					boolean isLastModified = name.equals(lastModifiedField);
+					if (isId || isLastModified) {
+						generator.copyCurrentEvent(parser);
+						t = parser.nextToken();
+						if (t.isScalarValue() && isId) id = parser.getText();
+						if (t.isScalarValue() && isLastModified) lastModified = parser.getText();
+					}
+				}
+				if (t.isNumeric()) {
+					// keep the source formatting of numbers, e.g. 1.10
+					generator.writeNumber(parser.getText());
+				} else {
+					generator.copyCurrentEvent(parser);
+				}
+				if (t.isStructStart()) depth++;
+				else if (t.isStructEnd()) depth--;
+				if (depth == 0) break;
+				t = parser.nextToken();
+			} while (t != null);
+		}
+		return new RawDocument(id, lastModified, buffer.toByteArray());
+	}
+
+	/**
+	 * Peek at a response body to tell an array or a <code>{"d":[...]}</code> envelope (an object whose only
+	 * field is an array) from a single document, leaving the stream where it was. As in
+	 * {@link JsonArrayIterator}, an array longer than {@link JsonArrayIterator#ENVELOPE_LOOKAHEAD} bytes is
+	 * taken for an envelope.
+	 */
+	public static boolean isArrayOrEnvelope(BufferedInputStream in) throws IOException {
+		return isArrayOrEnvelope(in, JsonArrayIterator.ENVELOPE_LOOKAHEAD);
+	}
+
+	public static boolean isArrayOrEnvelope(byte[] body) throws IOException {
+		return isArrayOrEnvelope(new ByteArrayInputStream(body), body.length + 1);
+	}
+
+	private static boolean isArrayOrEnvelope(InputStream in, int limit) throws IOException {
+		in.mark(limit);
+		try {
+			Peek peek = new Peek(in, limit);
+			int c = peek.skipWhitespace();
+			if (c == '[') return true;
+			if (c != '{' || peek.skipWhitespace() != '"' || !peek.skipString()) return false;
+			if (peek.skipWhitespace() != ':' || peek.skipWhitespace() != '[') return false;
+			if (!peek.skipNested()) return peek.exceeded();
+			return peek.skipWhitespace() == '}';
+		} finally {
+			in.reset();
+		}
+	}
+
+	public static BufferedInputStream buffered(InputStream in) {
+		return in instanceof BufferedInputStream ? (BufferedInputStream) in : new BufferedInputStream(in);
+	}
+
+	/**
+	 * Reads up to a limit of bytes ahead in a marked stream, skipping over JSON.
+	 */
+	private static final class Peek {
+		private final InputStream in;
+		private int left;
+
+		Peek(InputStream in, int limit) {
+			this.in = in;
+			this.left = limit;
+		}
+
+		boolean exceeded() {
+			return left < 0;
+		}
+
+		/**
+		 * @return the next byte, or -1 at the end of the stream or the limit
+		 */
+		int read() throws IOException {
+			return --left < 0 ? -1 : in.read();
+		}
+
+		int skipWhitespace() throws IOException {
+			int c;
+			do {
+				c = read();
+			} while (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+			return c;
+		}
+
+		/**
+		 * Skip to the end of a string whose opening quote has been read.
+		 * @return false if the input ended first
+		 */
+		boolean skipString() throws IOException {
+			for (int c = read(); c != '"'; c = read()) {
+				if (c < 0 || c == '\\' && read() < 0) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Skip to the end of an array or object whose opening bracket has been read.
+		 * @return false if the input ended first
+		 */
+		boolean skipNested() throws IOException {
+			for (int depth = 1; depth > 0; ) {
+				int c = read();
+				if (c < 0 || c == '"' && !skipString()) return false;
+				if (c == '[' || c == '{') depth++;
+				else if (c == ']' || c == '}') depth--;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Scan the top-level fields of the object at the parser's current START_OBJECT.
+	 * @param values receives the id and lastModified values
+	 * @param toEnd leave the parser on the object's END_OBJECT rather than stopping once the fields are found
+	 */
+	private static void findFields(JsonParser parser, String idField, String lastModifiedField, String[] values,
+			boolean toEnd) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken t = parser.nextToken();
+			if (t.isScalarValue() && values[0] == null && name.equals(idField)) {
+				values[0] = parser.getText();
+			} else if (t.isScalarValue() && values[1] == null && name.equals(lastModifiedField)) {
+				values[1] = parser.getText();
+			} else {
+				parser.skipChildren();
+			}
+			if (!toEnd && values[0] != null && (lastModifiedField == null || values[1] != null)) break;
+		}
+	}
+}
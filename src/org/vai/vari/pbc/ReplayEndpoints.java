@@ -0,0 +1,408 @@
+package org.vai.vari.pbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vai.vari.pbc.SimpleSyncServiceManager.StatusRecord;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the source, target and sync endpoints that replays a
+ * {@link TrafficRecorder} recording, so a manager can be driven with real document
+ * shapes far faster than production:
+ * <ul>
+ * <li><code>/source/</code>: each document version recorded becomes visible once the
+ * replay reaches the time it was recorded, divided by the speed. A query returns the
+ * visible versions modified since <code>starttime</code>, oldest first, paged by
+ * <code>pageSize</code> with Link rel="next", and <code>/source/&lt;id&gt;</code> one document.</li>
+ * <li><code>/target/</code> accepts anything.</li>
+ * <li><code>/sync</code> starts from the sync table recorded before the first source
+ * response; GET takes starttime, syncedStatus=0 and pageSize, and PUT or POST write one
+ * record or an array of them.</li>
+ * </ul>
+ * Responses are generated from the versions rather than replayed byte for byte, so
+ * queries need not match the recorded ones.
+ */
+public class ReplayEndpoints implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReplayEndpoints.class);
+
+	private static class Version {
+		final String id;
+		final String lastModified;
+		final byte[] bytes;
+		// when it was recorded, in ms from the first source response
+		final long offset;
+
+		Version(String id, String lastModified, byte[] bytes, long offset) {
+			this.id = id;
+			this.lastModified = lastModified;
+			this.bytes = bytes;
+			this.offset = offset;
+		}
+
+		String key() {
+			return lastModified + '\0' + id;
+		}
+	}
+
+	private final JsonCodec codec = new JsonCodec();
+	// the sync table may hold more than the manager reads
+	private final ObjectReader statusReader = codec.statusReader.without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+	private final double speed;
+	private final long latencyMs;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private String idField;
+	private String lastModifiedField;
+	private Boolean envelope;
+	// every version, in the order recorded
+	private final List<Version> timeline = new ArrayList<>();
+	// guarded by this: the newest visible version of each document, by id and by lastModified
+	private final Map<String, Version> current = new HashMap<>();
+	private final TreeMap<String, Version> modified = new TreeMap<>();
+	private int next;
+	private long startNanos;
+	// guarded by itself, in the order first written
+	private final Map<String, StatusRecord> status = new LinkedHashMap<>();
+	private final AtomicLong sourceRequests = new AtomicLong();
+	private final AtomicLong targetPosts = new AtomicLong();
+	private final AtomicLong statusWrites = new AtomicLong();
+
+	/**
+	 * @param port 0 for any free port
+	 * @param speed how many times faster than recorded the source changes
+	 */
+	public ReplayEndpoints(File recording, String host, int port, double speed, long latencyMs) throws IOException {
+		if (speed <= 0) throw new IllegalArgumentException("speed : " + speed);
+		this.speed = speed;
+		this.latencyMs = latencyMs;
+		load(recording);
+		executor = Executors.newFixedThreadPool(32, r -> {
+			Thread t = new Thread(r, "replay-endpoint");
+			t.setDaemon(true);
+			return t;
+		});
+		server = HttpExchanges.createServer(new InetSocketAddress(host, port), executor);
+		server.createContext("/source", this::source);
+		server.createContext("/target", this::target);
+		server.createContext("/sync", this::sync);
+		startNanos = System.nanoTime();
+		server.start();
+	}
+
+	private void load(File recording) throws IOException {
+		TrafficRecorder.read(recording.toPath(), new TrafficRecorder.Visitor() {
+			private long base = -1;
+
+			@Override
+			public void header(String idField, String lastModifiedField, long start) {
+				ReplayEndpoints.this.idField = idField;
+				ReplayEndpoints.this.lastModifiedField = lastModifiedField;
+			}
+
+			@Override
+			public void entry(byte kind, long offsetMillis, String uri, String link, byte[] body) throws IOException {
+				if (kind == TrafficRecorder.SYNC) {
+					// later snapshots only show what the manager wrote itself
+					if (base < 0) loadStatus(body);
+					return;
+				}
+				if (base < 0) base = offsetMillis;
+				loadDocuments(body, offsetMillis - base);
+			}
+		});
+		logger.info("Loaded {} document versions and {} status records from '{}'", timeline.size(), status.size(), recording);
+	}
+
+	private void loadStatus(byte[] body) throws IOException {
+		if (body.length == 0) return;
+		try (JsonArrayIterator<StatusRecord> records = new JsonArrayIterator<>(body, statusReader)) {
+			for (StatusRecord record : records) status.put(record.id, record);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void loadDocuments(byte[] body, long offset) throws IOException {
+		if (body.length == 0) return;
+		if (!RawDocument.isArrayOrEnvelope(body)) {
+			JsonNode document = codec.treeReader.readValue(body);
+			add(new Version(document.path(idField).asText(null), document.path(lastModifiedField).asText(null), body, offset));
+			return;
+		}
+		boolean any = false;
+		try (JsonArrayIterator<RawDocument> documents = new JsonArrayIterator<>(body, codec.getFactory(),
+				p -> RawDocument.slice(p, body, idField, lastModifiedField))) {
+			for (RawDocument document : documents) {
+				add(new Version(document.id, document.lastModified, document.bytes, offset));
+				any = true;
+			}
+		}
+		// answer in the shape of the first query that found anything
+		if (any && envelope == null) envelope = body[firstToken(body)] == '{';
+	}
+
+	private void add(Version version) {
+		if (version.id != null && version.lastModified != null) timeline.add(version);
+	}
+
+	private static int firstToken(byte[] body) {
+		int i = 0;
+		while (i < body.length - 1 && Character.isWhitespace(body[i])) i++;
+		return i;
+	}
+
+	public String getBaseUri() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+	}
+
+	public String getIdField() {
+		return idField;
+	}
+
+	public String getLastModifiedField() {
+		return lastModifiedField;
+	}
+
+	/**
+	 * @return document versions visible so far
+	 */
+	public synchronized int getReplayed() {
+		advance();
+		return next;
+	}
+
+	public int getRecorded() {
+		return timeline.size();
+	}
+
+	public long getSourceRequests() {
+		return sourceRequests.get();
+	}
+
+	public long getTargetPosts() {
+		return targetPosts.get();
+	}
+
+	public long getStatusWrites() {
+		return statusWrites.get();
+	}
+
+	/**
+	 * Make visible every version whose time has come; an older version than the one visible is ignored.
+	 */
+	private synchronized void advance() {
+		double due = (System.nanoTime() - startNanos) / 1e6 * speed;
+		while (next < timeline.size() && timeline.get(next).offset <= due) {
+			Version version = timeline.get(next++);
+			Version old = current.get(version.id);
+			if (old != null) {
+				if (old.lastModified.compareTo(version.lastModified) >= 0) continue;
+				modified.remove(old.key());
+			}
+			current.put(version.id, version);
+			modified.put(version.key(), version);
+		}
+	}
+
+	private void source(HttpExchange exchange) throws IOException {
+		HttpExchanges.delay(latencyMs);
+		sourceRequests.incrementAndGet();
+		String id = exchange.getRequestURI().getPath().substring("/source".length()).replaceFirst("^/", "");
+		advance();
+		if (!id.isEmpty()) {
+			Version version;
+			synchronized (this) {
+				version = current.get(id);
+			}
+			HttpExchanges.reply(exchange, version == null ? 404 : 200, version == null ? new byte[0] : version.bytes);
+			return;
+		}
+		String since = HttpExchanges.queryParam(exchange, "starttime");
+		int pageSize = HttpExchanges.intParam(exchange, "pageSize");
+		int skip = HttpExchanges.intParam(exchange, "skip");
+		List<byte[]> page = new ArrayList<>();
+		boolean more = false;
+		synchronized (this) {
+			SortedMap<String, Version> versions = since == null ? modified : modified.tailMap(since);
+			int i = 0;
+			for (Version version : versions.values()) {
+				if (i++ < skip) continue;
+				if (pageSize > 0 && page.size() == pageSize) {
+					more = true;
+					break;
+				}
+				page.add(version.bytes);
+			}
+		}
+		if (more) nextLink(exchange, "/source/", since, pageSize, skip + page.size());
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		boolean wrap = envelope == null || envelope;
+		body.write((wrap ? "{\"d\":[" : "[").getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < page.size(); i++) {
+			if (i > 0) body.write(',');
+			body.write(page.get(i));
+		}
+		body.write((wrap ? "]}" : "]").getBytes(StandardCharsets.UTF_8));
+		HttpExchanges.reply(exchange, 200, body.toByteArray());
+	}
+
+	private void target(HttpExchange exchange) throws IOException {
+		HttpExchanges.delay(latencyMs);
+		HttpExchanges.readBody(exchange);
+		targetPosts.incrementAndGet();
+		HttpExchanges.reply(exchange, 200, new byte[0]);
+	}
+
+	private void sync(HttpExchange exchange) throws IOException {
+		HttpExchanges.delay(latencyMs);
+		String method = exchange.getRequestMethod();
+		if (method.equals("GET")) {
+			String since = HttpExchanges.queryParam(exchange, "starttime");
+			boolean pendingOnly = "0".equals(HttpExchanges.queryParam(exchange, "syncedStatus"));
+			int pageSize = HttpExchanges.intParam(exchange, "pageSize");
+			int skip = HttpExchanges.intParam(exchange, "skip");
+			List<StatusRecord> page = new ArrayList<>();
+			boolean more = false;
+			synchronized (status) {
+				int i = 0;
+				for (StatusRecord record : status.values()) {
+					// a record without a lastModified counts as older than any starttime
+					if (since != null && (record.lastModified == null || record.lastModified.compareTo(since) < 0)) continue;
+					if (pendingOnly && record.syncedStatus != 0) continue;
+					if (i++ < skip) continue;
+					if (pageSize > 0 && page.size() == pageSize) {
+						more = true;
+						break;
+					}
+					page.add(record);
+				}
+			}
+			if (more) nextLink(exchange, "/sync", since, pageSize, skip + page.size());
+			StringBuilder body = new StringBuilder("{\"d\":[");
+			for (int i = 0; i < page.size(); i++) {
+				if (i > 0) body.append(',');
+				body.append(codec.writer.writeValueAsString(page.get(i)));
+			}
+			HttpExchanges.reply(exchange, 200, body.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		JsonNode body = codec.treeReader.readValue(HttpExchanges.readBody(exchange));
+		if (!body.isArray()) {
+			HttpExchanges.reply(exchange, write(method, statusReader.readValue(body)), new byte[0]);
+			return;
+		}
+		StringBuilder results = new StringBuilder("{\"d\":[");
+		for (JsonNode item : body) {
+			StatusRecord record = statusReader.readValue(item);
+			if (results.length() > 6) results.append(',');
+			results.append("{\"id\":").append(codec.writer.writeValueAsString(record.id))
+					.append(",\"status\":").append(write(method, record)).append('}');
+		}
+		HttpExchanges.reply(exchange, 200, results.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private int write(String method, StatusRecord record) {
+		statusWrites.incrementAndGet();
+		synchronized (status) {
+			if (method.equals("POST")) {
+				return status.putIfAbsent(record.id, record) == null ? 200 : 409;
+			}
+			status.put(record.id, record);
+			return 200;
+		}
+	}
+
+	private static void nextLink(HttpExchange exchange, String path, String since, int pageSize, int skip) throws IOException {
+		StringBuilder uri = new StringBuilder(path).append("?pageSize=").append(pageSize).append("&skip=").append(skip);
+		if (since != null) uri.append("&starttime=").append(URLEncoder.encode(since, "UTF-8"));
+		String pending = HttpExchanges.queryParam(exchange, "syncedStatus");
+		if (pending != null) uri.append("&syncedStatus=").append(URLEncoder.encode(pending, "UTF-8"));
+		exchange.getResponseHeaders().set("Link", "<" + uri + ">; rel=\"next\"");
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private static class Options {
+		@Argument(metaVar = "<recording>", required = true, usage = "file written by a manager with recordFile set")
+		File recording;
+
+		@Option(name = "--host", metaVar = "<host>", usage = "address to listen on (default 127.0.0.1)")
+		String host = "127.0.0.1";
+
+		@Option(name = "--port", metaVar = "<port>", usage = "port to listen on (default 8088)")
+		int port = 8088;
+
+		@Option(name = "--speed", metaVar = "<multiplier>", usage = "replay this many times faster than recorded (default 10)")
+		double speed = 10;
+
+		@Option(name = "--latency", metaVar = "<ms>", usage = "delay before each response (default 0)")
+		long latencyMs;
+
+		@Option(name = "--help", aliases = "-h", usage = "print this message", help = true)
+		boolean help;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Options options = new Options();
+		CmdLineParser parser = new CmdLineParser(options);
+		parser.getProperties().withShowDefaults(false);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			if (!options.help) {
+				System.err.println(e.getMessage());
+				parser.printUsage(System.err);
+				System.exit(1);
+			}
+		}
+		if (options.help) {
+			parser.printUsage(System.out);
+			return;
+		}
+		ReplayEndpoints replay = new ReplayEndpoints(options.recording, options.host, options.port, options.speed,
+				options.latencyMs);
+		String base = replay.getBaseUri();
+		logger.info("Replaying at {}x: sourceUri {}source/, targetUri {}target/, syncUri {}sync, idField {}, lastModifiedField {}",
+				options.speed, base, base, base, replay.getIdField(), replay.getLastModifiedField());
+		while (true) {
+			TimeUnit.SECONDS.sleep(10);
+			int replayed = replay.getReplayed();
+			logger.info("{}/{} versions replayed, {} source requests, {} target posts, {} status writes", replayed,
+					replay.getRecorded(), replay.getSourceRequests(), replay.getTargetPosts(), replay.getStatusWrites());
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package org.vai.vari.pbc;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry times for documents whose transfer failed, keyed by id. Each failure in a
+ * row doubles the delay from {@code initialDelay} up to {@code maxDelay}, and the
+ * delay is jittered between half and all of that so failed documents don't retry in
+ * lock step. Safe to use from several threads.
+ */
+public class RetryQueue {
+
+	private static class Entry {
+		final int attempts;
+		final long due;
+
+		Entry(int attempts, long due) {
+			this.attempts = attempts;
+			this.due = due;
+		}
+	}
+
+	private final long initialDelay;
+	private final long maxDelay;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * @param initialDelay milliseconds before the first retry
+	 * @param maxDelay longest delay in milliseconds
+	 */
+	public RetryQueue(long initialDelay, long maxDelay) {
+		this.initialDelay = Math.max(1, initialDelay);
+		this.maxDelay = Math.max(this.initialDelay, maxDelay);
+	}
+
+	/**
+	 * @return true if the document hasn't failed, or its retry time has come
+	 */
+	public boolean isDue(String id) {
+		Entry entry = entries.get(id);
+		return entry == null || entry.due <= now();
+	}
+
+	/**
+	 * Schedule the next attempt.
+	 * @return milliseconds until then
+	 */
+	public long failed(String id) {
+		Entry entry = entries.compute(id, (k, previous) -> {
+			int attempts = previous == null ? 1 : previous.attempts + 1;
+			return new Entry(attempts, now() + delay(attempts));
+		});
+		return Math.max(0, entry.due - now());
+	}
+
+	/**
+	 * Push back the next attempt of a waiting document that was skipped without being tried, by the
+	 * delay of its current attempt.
+	 */
+	public void postpone(String id) {
+		entries.computeIfPresent(id, (k, entry) -> new Entry(entry.attempts, now() + delay(entry.attempts)));
+	}
+
+	public void succeeded(String id) {
+		entries.remove(id);
+	}
+
+	/**
+	 * Forget the documents that are no longer waiting to be sent, e.g. synced by another instance.
+	 */
+	public void retainAll(Set<String> ids) {
+		entries.keySet().retainAll(ids);
+	}
+
+	/**
+	 * @return failures in a row for the document
+	 */
+	public int getAttempts(String id) {
+		Entry entry = entries.get(id);
+		return entry == null ? 0 : entry.attempts;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return milliseconds until the earliest retry, or -1 if none are waiting
+	 */
+	public long getNextDelay() {
+		long now = now();
+		long next = -1;
+		for (Entry entry : entries.values()) {
+			long delay = Math.max(0, entry.due - now);
+			if (next < 0 || delay < next) next = delay;
+		}
+		return next;
+	}
+
+	private long delay(int attempts) {
+		long delay = attempts > 30 ? maxDelay : Math.min(maxDelay, initialDelay << (attempts - 1));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+}
@@ -0,0 +1,112 @@
+package org.vai.vari.pbc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory metrics, written out in the Prometheus text format.
+ * Histograms count samples in power-of-two buckets, so quantiles are
+ * upper bounds within a factor of two.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+	@Override
+	public void record(String name, long value) {
+		histograms.computeIfAbsent(name, n -> new Histogram()).add(value);
+	}
+
+	@Override
+	public void count(String name, long delta) {
+		counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+	}
+
+	@Override
+	public void gauge(String name, long value) {
+		gauges.computeIfAbsent(name, n -> new AtomicLong()).set(value);
+	}
+
+	public long getCount(String name) {
+		LongAdder counter = counters.get(name);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public void writeTo(Writer out) throws IOException {
+		Set<String> typed = new HashSet<>();
+		for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+			writeType(out, typed, e.getKey(), "counter");
+			out.write(e.getKey() + " " + e.getValue().sum() + "\n");
+		}
+		for (Map.Entry<String, AtomicLong> e : new TreeMap<>(gauges).entrySet()) {
+			writeType(out, typed, e.getKey(), "gauge");
+			out.write(e.getKey() + " " + e.getValue().get() + "\n");
+		}
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()) {
+			String name = e.getKey();
+			Histogram h = e.getValue();
+			writeType(out, typed, name, "summary");
+			// quantile and suffixes go with any labels the name carries
+			int brace = name.indexOf('{');
+			String family = brace < 0 ? name : name.substring(0, brace);
+			String labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+			for (double q : QUANTILES) {
+				out.write(family + "{" + (labels.isEmpty() ? "" : labels + ",") + "quantile=\"" + q + "\"} "
+						+ h.quantile(q) + "\n");
+			}
+			String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+			out.write(family + "_max" + suffix + h.max.get() + "\n");
+			out.write(family + "_sum" + suffix + h.sum.sum() + "\n");
+			out.write(family + "_count" + suffix + h.count.sum() + "\n");
+		}
+	}
+
+	private static void writeType(Writer out, Set<String> typed, String name, String type) throws IOException {
+		int labels = name.indexOf('{');
+		String family = labels < 0 ? name : name.substring(0, labels);
+		if (typed.add(family)) out.write("# TYPE " + family + " " + type + "\n");
+	}
+
+	private static class Histogram {
+		// bucket i holds values below 2^i, and at least 2^(i-1)
+		final LongAdder[] buckets = new LongAdder[64];
+		final LongAdder count = new LongAdder();
+		final LongAdder sum = new LongAdder();
+		final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		void add(long value) {
+			value = Math.max(0, value);
+			buckets[64 - Long.numberOfLeadingZeros(value)].add(1);
+			count.add(1);
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		long quantile(double q) {
+			long total = count.sum();
+			if (total == 0) return 0;
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i].sum();
+				if (seen >= q * total) return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+			}
+			return max.get();
+		}
+	}
+}
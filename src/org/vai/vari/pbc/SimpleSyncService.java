@@ -9,17 +9,23 @@ import javax.ws.rs.core.UriBuilder;
 import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
 import org.kohsuke.args4j.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 
 /**
@@ -73,8 +79,20 @@ public class SimpleSyncService {
 	}
 	private Optional<String> idField = Optional.empty();
 	
+	@Option(name = "--compression", metaVar = "<mode>",
+	        usage = "none, accept (compressed responses), gzip or deflate (also compressed request bodies)")
+	public String compression = "accept";
+	
 	private Client sourceClient;
 	private Client targetClient;
+	// optional caps on concurrent requests to each endpoint
+	private Semaphore sourcePermits;
+	private Semaphore targetPermits;
+	private boolean streaming = true;
+	private boolean passThrough = true;
+	private JsonCodec codec;
+	private MetricsRegistry metrics = MetricsRegistry.NONE;
+	private final LongAdder bytesSent = new LongAdder();
 	
     /**
      * Main method
@@ -119,11 +137,10 @@ public class SimpleSyncService {
         
         // Use peer certificate authentication
         if (sourceKeyStore.isPresent()) {
-	        KeyStore keystore = KeyStore.getInstance("PKCS12");
-	        keystore.load(new FileInputStream(sourceKeyStore.get()), sourcePassword == null ? null : sourcePassword.toCharArray());
+	        KeyStore keystore = PooledClientFactory.loadKeyStore(sourceKeyStore.get(), sourcePassword);
         	builder.keyStore(keystore, sourcePassword == null ? "" : sourcePassword);
         }
-        sourceClient = builder.build();
+        sourceClient = Compression.configure(builder.build(), compression);
         
         if (!targetUri.isPresent())
         	return;
@@ -145,6 +162,63 @@ public class SimpleSyncService {
         	HttpAuthenticationFeature feature = HttpAuthenticationFeature.basic(targetUsername.get(), targetPassword);
         	targetClient.register(feature);
         }
+        Compression.configure(targetClient, compression);
+    }
+    
+    /**
+     * Reuse clients built (and pooled) by the caller instead of building new ones.
+     * @param sourceClient
+     * @param targetClient null to pretty print to the console instead of sending
+     */
+    public void init(Client sourceClient, Client targetClient) {
+    	this.sourceClient = sourceClient;
+    	this.targetClient = targetUri.isPresent() ? targetClient : null;
+    }
+    
+    /**
+     * Limit the number of requests in flight to the source and target when
+     * {@link #run(URI)} is called from several threads.
+     * @param maxSource 0 for no limit
+     * @param maxTarget 0 for no limit
+     */
+    public void setInFlightLimits(int maxSource, int maxTarget) {
+    	sourcePermits = maxSource > 0 ? new Semaphore(maxSource) : null;
+    	targetPermits = maxTarget > 0 ? new Semaphore(maxTarget) : null;
+    }
+    
+    /**
+     * Parse source responses element by element as they arrive (the default), or buffer them first.
+     */
+    public void setStreaming(boolean streaming) {
+    	this.streaming = streaming;
+    }
+    
+    /**
+     * Forward the source bytes of each document as they are (the default), or re-serialize parsed documents.
+     */
+    public void setPassThrough(boolean passThrough) {
+    	this.passThrough = passThrough;
+    }
+    
+    /**
+     * Share the caller's JSON codec instead of building one.
+     */
+    public void setCodec(JsonCodec codec) {
+    	this.codec = codec;
+    }
+    
+    /**
+     * Report source and target latencies, response codes and bytes sent.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+    	this.metrics = metrics;
+    }
+    
+    /**
+     * @return request body bytes sent to the target so far
+     */
+    public long getBytesSent() {
+    	return bytesSent.sum();
     }
     
     /**
@@ -153,34 +227,175 @@ public class SimpleSyncService {
      * @throws IOException 
      */
     public Response run() throws GeneralSecurityException, IOException {
+    	return run(sourceUri);
+    }
+    
+    /**
+     * Transfer the document(s) at the given source URI. Safe to call concurrently.
+     * @throws GeneralSecurityException 
+     * @throws IOException 
+     */
+    public Response run(URI sourceUri) throws GeneralSecurityException, IOException {
     	
     	// GET
-    	Response response = sourceClient.target(sourceUri).request().get();
-    	int httpCode = response.getStatus();
-        if (httpCode < 200 || httpCode >= 300) {
-        	throw new IOException("unexpected response from '" + sourceUri + "': " + httpCode);
-        }
-        String sourceData = response.readEntity(String.class);
-
-    	// pretty print JSON to console if no target specified
-    	if (targetClient == null) {
-    		ObjectMapper mapper = new ObjectMapper();
-    		Object json = mapper.readValue(sourceData, Object.class);
-        	System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(json));
-    		return response;
+    	Response response;
+    	JsonArrayIterator<JsonNode> docs;
+    	ObjectReader reader = getCodec().treeReader;
+    	if (sourcePermits != null) sourcePermits.acquireUninterruptibly();
+    	try {
+    		long start = System.nanoTime();
+    		response = sourceClient.target(sourceUri).request().get();
+    		metrics.record("source_get_us", MetricsRegistry.micros(start));
+	    	int httpCode = response.getStatus();
+	    	metrics.count(MetricsRegistry.status("source_responses_total", httpCode), 1);
+	        if (httpCode < 200 || httpCode >= 300) {
+	        	response.close();
+	        	throw new IOException("unexpected response from '" + sourceUri + "': " + httpCode);
+	        }
+	        
+	    	// pretty print JSON to console if no target specified
+	    	if (targetClient == null) {
+	    		// buffered so the caller can still read the response
+	    		response.bufferEntity();
+	    		JsonNode json = reader.readValue(response.readEntity(byte[].class));
+	        	System.out.println(getCodec().prettyWriter.writeValueAsString(json));
+	    		return response;
+	    	}
+	    	
+	    	if (passThrough) {
+	    		return forward(response);
+	    	}
+	    	
+	    	if (streaming) {
+	    		// documents are read from the source while they are sent, so the source request stays in flight until then
+	    		docs = new JsonArrayIterator<>(response.readEntity(InputStream.class), reader);
+	    		return send(docs, response);
+	    	}
+	    	docs = new JsonArrayIterator<>(response.readEntity(byte[].class), reader);
+    	} finally {
+    		if (sourcePermits != null) sourcePermits.release();
     	}
-        
-    	// send
-    	JsonNode jsonRoot = new ObjectMapper().readTree(sourceData);
-    	if (jsonRoot.size() == 1 && jsonRoot.elements().next().isArray()) {
-    		// send multiple documents
-    		for (final JsonNode objNode : jsonRoot.elements().next()) {
-    	        response = send(objNode, targetClient);
-    	    }
-    		return response;
+    	return send(docs, response);
+    }
+    
+    /**
+     * Send the source bytes of each document without building trees or re-serializing them.
+     */
+    private Response forward(Response sourceResponse) throws IOException {
+    	JsonFactory factory = getCodec().getFactory();
+    	String id = idField.isPresent() ? idField.get() : null;
+    	if (streaming) {
+    		BufferedInputStream in = RawDocument.buffered(sourceResponse.readEntity(InputStream.class));
+    		try {
+	    		if (!RawDocument.isArrayOrEnvelope(in)) {
+	    			// one document, so buffering it doesn't cost more than one document
+	    			return send(RawDocument.whole(readAll(in), factory, id), targetClient);
+	    		}
+	    		JsonParser parser = factory.createParser(in);
+	    		return forward(new JsonArrayIterator<>(parser, p -> RawDocument.copy(p, factory, id, null)), sourceResponse);
+    		} finally {
+    			in.close();
+    		}
+    	}
+    	byte[] body = sourceResponse.readEntity(byte[].class);
+    	if (!RawDocument.isArrayOrEnvelope(body)) {
+    		return send(RawDocument.whole(body, factory, id), targetClient);
+    	}
+    	return forward(new JsonArrayIterator<>(body, factory, p -> RawDocument.slice(p, body, id, null)), sourceResponse);
+    }
+    
+    /**
+     * GET one document from the source without sending it. A response holding an array or
+     * envelope yields its first element. Safe to call concurrently.
+     * @throws IOException for a non-2xx response or an empty array
+     */
+    public RawDocument fetch(URI sourceUri) throws IOException {
+    	byte[] body;
+    	if (sourcePermits != null) sourcePermits.acquireUninterruptibly();
+    	try {
+    		long start = System.nanoTime();
+    		Response response = sourceClient.target(sourceUri).request().get();
+    		metrics.record("source_get_us", MetricsRegistry.micros(start));
+	    	int httpCode = response.getStatus();
+	    	metrics.count(MetricsRegistry.status("source_responses_total", httpCode), 1);
+	        if (httpCode < 200 || httpCode >= 300) {
+	        	response.close();
+	        	throw new IOException("unexpected response from '" + sourceUri + "': " + httpCode);
+	        }
+	        body = response.readEntity(byte[].class);
+    	} finally {
+    		if (sourcePermits != null) sourcePermits.release();
+    	}
+    	JsonFactory factory = getCodec().getFactory();
+    	String id = idField.isPresent() ? idField.get() : null;
+    	RawDocument doc;
+    	if (RawDocument.isArrayOrEnvelope(body)) {
+    		try (JsonArrayIterator<RawDocument> docs = new JsonArrayIterator<>(body, factory,
+    				p -> RawDocument.slice(p, body, id, null))) {
+    			if (!docs.hasNext()) throw new IOException("no document at '" + sourceUri + "'");
+    			doc = docs.next();
+    		}
     	} else {
-    		// send one document
-    		return send(jsonRoot, targetClient);
+    		doc = RawDocument.whole(body, factory, id);
+    	}
+    	if (!passThrough) {
+    		JsonNode tree = getCodec().treeReader.readValue(doc.bytes);
+    		doc = new RawDocument(doc.id, doc.lastModified, getCodec().writer.writeValueAsBytes(tree));
+    	}
+    	return doc;
+    }
+    
+    /**
+     * Send a document the caller already has from the source. Safe to call concurrently.
+     */
+    public Response send(RawDocument doc) throws IOException {
+    	return send(doc, targetClient);
+    }
+    
+    private Response forward(JsonArrayIterator<RawDocument> docs, Response sourceResponse) throws IOException {
+    	try {
+	    	Response sent = null;
+	    	for (final RawDocument doc : docs) {
+	    		// only the last response is handed back to the caller
+	    		if (sent != null) sent.close();
+	    		sent = send(doc, targetClient);
+	    	}
+	    	return sent == null ? sourceResponse : sent;
+    	} finally {
+    		docs.close();
+    	}
+    }
+    
+    private synchronized JsonCodec getCodec() {
+    	if (codec == null) codec = new JsonCodec();
+    	return codec;
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+    	ByteArrayBuilder buffer = new ByteArrayBuilder();
+    	byte[] chunk = new byte[8192];
+    	for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+    		buffer.write(chunk, 0, n);
+    	}
+    	return buffer.toByteArray();
+    }
+    
+    private Response send(JsonArrayIterator<JsonNode> docs, Response sourceResponse) throws IOException {
+    	try {
+	    	if (docs.isSingleDocument()) {
+	    		// send one document
+	    		return send(docs.next(), targetClient);
+	    	}
+	    	// send multiple documents
+	    	Response sent = null;
+	    	for (final JsonNode objNode : docs) {
+	    		// only the last response is handed back to the caller
+	    		if (sent != null) sent.close();
+	    		sent = send(objNode, targetClient);
+	    	}
+	    	return sent == null ? sourceResponse : sent;
+    	} finally {
+    		docs.close();
     	}
     }
     
@@ -188,9 +403,29 @@ public class SimpleSyncService {
 		String id = idField.isPresent() ? data.get(idField.get()).asText() : "";
 
         // POST
-        return client.target(UriBuilder.fromUri(targetUri.get()).path(id).build())
-    			.request(MediaType.APPLICATION_JSON_TYPE)
-    			.post(Entity.entity(new ObjectMapper().writeValueAsString(data), MediaType.APPLICATION_JSON));
+        return post(id, getCodec().writer.writeValueAsBytes(data), client);
+    }
+    
+    private Response send(RawDocument doc, Client client) throws IOException {
+    	if (idField.isPresent() && doc.id == null) throw new IllegalArgumentException("idField : " + idField.get());
+    	return post(idField.isPresent() ? doc.id : "", doc.bytes, client);
+    }
+    
+    private Response post(String id, byte[] body, Client client) {
+        if (targetPermits != null) targetPermits.acquireUninterruptibly();
+        try {
+        	long start = System.nanoTime();
+	        Response response = client.target(UriBuilder.fromUri(targetUri.get()).path(id).build())
+	    			.request(MediaType.APPLICATION_JSON_TYPE)
+	    			.post(Entity.entity(body, MediaType.APPLICATION_JSON));
+	        metrics.record("target_post_us", MetricsRegistry.micros(start));
+	        metrics.count(MetricsRegistry.status("target_responses_total", response.getStatus()), 1);
+	        metrics.count("target_bytes_total", body.length);
+	        bytesSent.add(body.length);
+	        return response;
+        } finally {
+        	if (targetPermits != null) targetPermits.release();
+        }
     }
 }
 
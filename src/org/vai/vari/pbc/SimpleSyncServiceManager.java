@@ -1,51 +1,63 @@
 package org.vai.vari.pbc;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.ConnectException;
+import java.net.URI;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
-import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.internet.MimeMessage;
+import java.util.stream.StreamSupport;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSession;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
-import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 
 import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
-import org.glassfish.jersey.jackson.JacksonFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 public class SimpleSyncServiceManager {
@@ -58,6 +70,11 @@ public class SimpleSyncServiceManager {
 	public String targetPassword;
 	public String idField;
 	public short pollingInterval = 5;
+	// polling interval in seconds, used instead of pollingInterval when set
+	public long pollingIntervalSeconds = 0;
+	// idle cycles in a row stretch the interval by pollingBackoff each time, up to this many seconds (0 for no backoff)
+	public long maxPollingIntervalSeconds = 0;
+	public double pollingBackoff = 2;
 	public String syncUri;
 	public String syncKeyStore;
 	public String syncPassword;
@@ -67,7 +84,132 @@ public class SimpleSyncServiceManager {
 	public String mailSubjSuccess;
 	public String mailSubjFailure;
 	public String mailBodySuccess;
+	// content encoding per endpoint: none, accept (compressed responses), or gzip or deflate to also compress
+	// request bodies (target POSTs, sync status writes)
+	public String sourceCompression = "accept";
+	public String targetCompression = "accept";
+	public String syncCompression = "accept";
+	// connection pool settings; clients with the same keystore (or none), routes included, share one pool
+	public int poolMaxConnectionsPerRoute = 8;
+	public int poolMaxConnections = 32;
+	// idle connections are evicted after this many seconds
+	public int poolIdleTimeout = 60;
+	// connections opened to each endpoint at startup, before the first cycle (0 to connect on first use)
+	public int warmUpConnections = 4;
+	// number of documents transferred in parallel, and the most requests in flight per endpoint (0 for no limit)
+	public int transferConcurrency = 4;
+	public int maxInFlightSource = 4;
+	public int maxInFlightTarget = 4;
+	public int maxInFlightSync = 4;
+	// documents reset and waiting for a transfer worker before discovery pauses
+	public int pipelineQueueSize = 100;
+	// status records per sync request (1 to disable batching), and the longest a record waits in a batch (ms)
+	public int statusBatchSize = 1;
+	public long statusBatchMaxDelay = 1000;
+	// parse source and sync responses element by element as they arrive instead of buffering them
+	public boolean streamingParse = true;
+	// forward the source bytes of each document instead of re-serializing it
+	public boolean passThrough = true;
+	// documents downloaded while resetting sync status are kept for the transfer phase (0 entries to disable)
+	public int documentCacheSize = 10000;
+	public long documentCacheMaxBytes = 256L * 1024 * 1024;
+	// local file holding mruTimestamp and recently synced keys so a restart resumes instead of rescanning (empty to disable)
+	public String checkpointFile;
+	public int checkpointMaxKeys = 10000;
+	// query string the sync endpoint uses to return only unsynced records (empty to fetch all of them)
+	public String syncPendingQuery = "syncedStatus=0";
+	// status records per sync GET, sent as pageSize, with further pages followed through Link rel="next" (0 for no paging)
+	public int syncPageSize = 0;
+	// outstanding records are tracked locally, and re-read from the sync endpoint once this many seconds have passed
+	// (0 re-reads them every cycle)
+	public long syncPendingRefreshSeconds = 3600;
+	// modified documents per source GET, sent as pageSize, with further pages followed through Link rel="next"
+	// (0 for no paging); the source should return them oldest first
+	public int sourcePageSize = 0;
+	// class name of a MetricsRegistry implementation (empty for the built-in one)
+	public String metricsRegistry;
+	// the built-in registry is served at http://metricsHost:metricsPort/metrics (0 to disable)
+	public String metricsHost = "127.0.0.1";
+	public int metricsPort = 0;
+	// a document whose transfer fails is retried on its own, after retryInitialDelay ms doubling up to retryMaxDelay ms
+	public long retryInitialDelay = 5000;
+	public long retryMaxDelay = 30 * 60 * 1000;
+	// requests to the source or target pause for circuitBreakerOpenSeconds after this many failures in a row (0 never pauses)
+	public int circuitBreakerThreshold = 5;
+	public long circuitBreakerOpenSeconds = 60;
+	// alerts go to mail, log, file (alertFile) or the AlertSink class named here; further alerts with the
+	// same subject within alertDigestMinutes are sent as one digest
+	public String alertSink = "mail";
+	public String alertFile;
+	public int alertDigestMinutes = 15;
+	public int alertQueueSize = 1000;
+	// local file of content hashes of the documents the target has; a document whose content is unchanged apart
+	// from the top-level fingerprintIgnoreFields is marked sync'ed without being sent (empty to disable). Listing
+	// lastModifiedField there skips changes to it alone, leaving the target with the older value
+	public String fingerprintFile;
+	public List<String> fingerprintIgnoreFields = new ArrayList<>();
+	// documents whose newest version written to the target is remembered, so an older one never overwrites it
+	public int writtenVersionsMax = 100000;
+	// source change feed (empty to only poll): sse for server-sent events or longpoll; each change is reset and
+	// sent as soon as it arrives, between polling cycles, and polling carries on as a safety net
+	public String changeFeedUri;
+	public String changeFeedMode = "sse";
+	// local file recording the source responses and sync table snapshots, for ReplayEndpoints to serve at a
+	// multiple of production speed (empty to disable); responses are buffered in memory while recording
+	public String recordFile;
+	// field holding each document's modification time (empty for lastModified, or ModifiedOn under /images)
+	public String lastModifiedField;
+	// further source/target/sync routes, each listing the settings above that differ from the top level; they
+	// share its connection pools, transfer workers, metrics and alerts, and take turns on routeConcurrency poll threads
+	public List<Map<String, Object>> routes;
+	// route name in logs, metrics and alerts
+	public String name;
+	public int routeConcurrency = 2;
 	private Optional<String> lastExceptionMessage = Optional.empty();
+	private static final int WARM_UP_TIMEOUT = 10000;
+	
+	private PooledClientFactory clientFactory;
+	private Client sourceClient;
+	private Client targetClient;
+	private Client syncClient;
+	private SimpleSyncService service;
+	private TransferEngine transferEngine;
+	private InFlightRegistry inFlight;
+	private final JsonCodec codec = new JsonCodec();
+	private DocumentCache documentCache;
+	private SyncCheckpoint checkpoint;
+	private FingerprintStore fingerprints;
+	private Set<String> fingerprintIgnored;
+	private TrafficRecorder recorder;
+	// local view of the records still to be sent, keyed by id
+	private Map<String, StatusRecord> pendingRecords = new ConcurrentHashMap<>();
+	private volatile boolean pendingStale = true;
+	private long pendingRefreshedNanos;
+	// documents reset or sent by the current cycle
+	private final AtomicInteger cycleWork = new AtomicInteger();
+	// documents marked sync'ed by the current cycle without being sent, as the target already has their content
+	private final AtomicInteger cycleUnchanged = new AtomicInteger();
+	private volatile boolean cycleCompleted;
+	private MetricsRegistry metrics;
+	private MetricsHttpExporter metricsExporter;
+	private AlertDispatcher alerts;
+	// the top-level manager whose shared resources a route uses
+	private SimpleSyncServiceManager parent;
+	private ChangeFeed changeFeed;
+	// keys the sync endpoint had at the start of the last cycle, kept for the change feed along with the keys marked
+	// since, which transfers queue up in markedKeys; only touched with cycleLock held
+	private SyncStatusIndex syncedKeys;
+	private final Queue<String> markedKeys = new ConcurrentLinkedQueue<>();
+	// polling cycles and change feed batches take turns
+	private final ReentrantLock cycleLock = new ReentrantLock();
+	private RetryQueue retryQueue;
+	private CircuitBreaker sourceBreaker;
+	private CircuitBreaker targetBreaker;
+	private Semaphore syncPermits;
+	private StatusWriter resetWriter;
+	private StatusWriter markWriter;
+	// the send stage of the page being synced, fed by the reset writer
+	private volatile TransferEngine.Batch<StatusRecord> sends;
 	
 	public String mruTimestamp;
 	public boolean optionSyncOnce;
@@ -90,42 +232,79 @@ public class SimpleSyncServiceManager {
 
 		String configFile = args.length > 0 ? args[0] : "SimpleSyncService.yaml";
 		ObjectMapper mapper = new ObjectMapper(new YAMLFactory()); 
-		final SimpleSyncServiceManager mgr = mapper.readValue(new File(configFile), SimpleSyncServiceManager.class);
+		JsonNode config = mapper.readTree(new File(configFile));
+		final SimpleSyncServiceManager mgr = mapper.treeToValue(config, SimpleSyncServiceManager.class);
 		mgr.logger = LoggerFactory.getLogger(SimpleSyncServiceManager.class);
 		mgr.logger.info("SimpleSyncServiceManager started.");
-		mgr.logger.info("Source URI: {}", mgr.sourceUri);
-		mgr.logger.info("Target URI: {}", mgr.targetUri);
-		mgr.mruTimestamp = null;
-		ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-		ScheduledFuture<?> future = executor.scheduleAtFixedRate(mgr::run, 0, mgr.pollingInterval, TimeUnit.MINUTES);
+		List<SimpleSyncServiceManager> routes = mgr.startRoutes(mapper, config);
+		long startup = ManagementFactory.getRuntimeMXBean().getUptime();
+		mgr.getMetrics().gauge("startup_ms", startup);
+		mgr.logger.info("Started in {} ms.", startup);
+		ScheduledExecutorService pollExecutor = AdaptiveScheduler.newExecutor(Math.min(routes.size(), mgr.routeConcurrency));
+		List<AdaptiveScheduler> schedulers = new ArrayList<>();
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (SimpleSyncServiceManager route : routes) {
+			route.logger.info("Source URI: {}", route.sourceUri);
+			route.logger.info("Target URI: {}", route.targetUri);
+			long interval = route.pollingIntervalSeconds > 0 ? route.pollingIntervalSeconds : TimeUnit.MINUTES.toSeconds(route.pollingInterval);
+			AdaptiveScheduler scheduler = new AdaptiveScheduler(pollExecutor, TimeUnit.SECONDS.toMillis(interval),
+					TimeUnit.SECONDS.toMillis(route.maxPollingIntervalSeconds), route.pollingBackoff);
+			scheduler.setMetrics(route.getMetrics());
+			// don't sleep past the next document retry
+			scheduler.setDelayLimit(route::getNextRetryDelay);
+			schedulers.add(scheduler);
+			// a route that fails stops on its own; the others carry on
+			futures.add(scheduler.start(route::poll).whenComplete((v, e) -> {
+				if (e == null) return;
+				StringWriter sw = new StringWriter();
+				e.printStackTrace(new PrintWriter(sw));
+				route.logger.error(sw.toString());
+			}));
+		}
 		try {
-			future.get(); // need this to retrieve any exceptions
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(); // need this to retrieve any exceptions
 		} catch (InterruptedException e) {
 			StringWriter sw = new StringWriter();
 			PrintWriter pw = new PrintWriter(sw);
 			e.printStackTrace(pw);
 			mgr.logger.error(sw.toString());
 		} catch (ExecutionException e) {
-			StringWriter sw = new StringWriter();
-			PrintWriter pw = new PrintWriter(sw);
-			e.getCause().printStackTrace(pw);
-			mgr.logger.error(sw.toString());
+			// each route has logged its own failure
 		} catch (Exception e) {
 			StringWriter sw = new StringWriter();
 			PrintWriter pw = new PrintWriter(sw);
 			e.printStackTrace(pw);
 			mgr.logger.error(sw.toString());
 		} finally {
-			executor.shutdown(); // process will not terminate without this
+			schedulers.forEach(AdaptiveScheduler::close);
+			pollExecutor.shutdownNow(); // process will not terminate without this
+			for (SimpleSyncServiceManager route : routes) route.close();
+			mgr.close();
 		}
 	}
 	
+	/**
+	 * Split the config into routes and warm each one up. mruTimestamp is cleared first, so a route starts
+	 * from its checkpoint if it has one and from the full history if not.
+	 */
+	List<SimpleSyncServiceManager> startRoutes(ObjectMapper mapper, JsonNode config) throws IOException {
+		List<SimpleSyncServiceManager> routes = getRoutes(mapper, config);
+		for (SimpleSyncServiceManager route : routes) {
+			route.mruTimestamp = null;
+			try {
+				route.warmUp();
+			} catch (GeneralSecurityException | IOException | RuntimeException e) {
+				route.logger.warn("Warm-up failed, leaving it to the first cycle: {}", e.toString());
+			}
+		}
+		return routes;
+	}
+	
     public Client initSource() throws GeneralSecurityException, IOException {
 
     	System.setProperty("https.protocols", "TLSv1.2");
-        ClientBuilder builder = ClientBuilder.newBuilder()
-        		// Set up a HostnameVerifier to allow 'localhost' for debugging purposes
-    			.hostnameVerifier(new HostnameVerifier()
+		// Set up a HostnameVerifier to allow 'localhost' for debugging purposes
+    	HostnameVerifier hostnameVerifier = new HostnameVerifier()
         {
     		public boolean verify(String hostname, SSLSession session)
             {
@@ -135,25 +314,23 @@ public class SimpleSyncServiceManager {
                 	return true;
                 return false;
             }
-        });
-        
+        };
         
         // Use peer certificate authentication
+        KeyStore keystore = null;
         if (!this.sourceKeyStore.isEmpty()) {
-	        KeyStore keystore = KeyStore.getInstance("PKCS12");
-	        keystore.load(new FileInputStream(this.sourceKeyStore), this.sourcePassword == null ? null : this.sourcePassword.toCharArray());
-        	builder.keyStore(keystore, this.sourcePassword == null ? "" : this.sourcePassword);
+	        keystore = getClientFactory().getKeyStore(this.sourceKeyStore, this.sourcePassword);
         }
-        return builder.build();
+        return Compression.configure(getClientFactory().newClient(keystore, this.sourcePassword, hostnameVerifier),
+        		sourceCompression);
     }
     
     public Client initTarget() {
         
     	if (this.targetUri.isEmpty()) return null;
     	
-        Client client = ClientBuilder.newBuilder()
-    			// Set up a HostnameVerifier to work around the lack of SNI support on the production server. 
-    			.hostnameVerifier(new HostnameVerifier()
+		// Set up a HostnameVerifier to work around the lack of SNI support on the production server. 
+        Client client = getClientFactory().newClient(null, null, new HostnameVerifier()
         {
     		public boolean verify(String hostname, SSLSession session)
             {
@@ -161,20 +338,19 @@ public class SimpleSyncServiceManager {
                     return true;
                 return false;
             }
-        }).build();
+        });
         
         // Use HTTP basic authentication
         if (!this.targetUsername.isEmpty()) {
         	HttpAuthenticationFeature feature = HttpAuthenticationFeature.basic(this.targetUsername, this.targetPassword);
         	client.register(feature);
         }
-        return client;
+        return Compression.configure(client, targetCompression);
     }
     
     public Client initSync() throws GeneralSecurityException, IOException {
-    	ClientBuilder builder = ClientBuilder.newBuilder()
-        		// Set up a HostnameVerifier to allow 'localhost' for debugging purposes
-    			.hostnameVerifier(new HostnameVerifier()
+		// Set up a HostnameVerifier to allow 'localhost' for debugging purposes
+    	HostnameVerifier hostnameVerifier = new HostnameVerifier()
         {
     		public boolean verify(String hostname, SSLSession session)
             {
@@ -184,65 +360,525 @@ public class SimpleSyncServiceManager {
                 	return true;
                 return false;
             }
-        });
+        };
         
         // Use peer certificate authentication
-        if (this.syncKeyStore != null) {
-	        KeyStore keystore = KeyStore.getInstance("PKCS12");
-	        keystore.load(new FileInputStream(this.syncKeyStore), this.syncPassword == null ? null : this.syncPassword.toCharArray());
-        	builder.keyStore(keystore, this.syncPassword == null ? "" : this.syncPassword);
+        KeyStore keystore = null;
+        if (this.syncKeyStore != null && !this.syncKeyStore.isEmpty()) {
+	        keystore = getClientFactory().getKeyStore(this.syncKeyStore, this.syncPassword);
         }
         
-        return builder.register(JacksonFeature.class).build();
+        return Compression.configure(getClientFactory().newClient(keystore, this.syncPassword, hostnameVerifier),
+        		syncCompression);
+    }
+    
+    /**
+     * @return a manager for each entry in routes, built from the top-level settings overridden by the entry's,
+     * or just this one if there are no routes
+     */
+    List<SimpleSyncServiceManager> getRoutes(ObjectMapper mapper, JsonNode config) throws IOException {
+    	if (routes == null || routes.isEmpty()) return Arrays.asList(this);
+    	List<SimpleSyncServiceManager> managers = new ArrayList<>();
+    	for (int i = 0; i < routes.size(); i++) {
+    		ObjectNode settings = ((ObjectNode) config).deepCopy();
+    		settings.remove("routes");
+    		settings.setAll((ObjectNode) mapper.valueToTree(routes.get(i)));
+    		if (!settings.hasNonNull("name")) settings.put("name", "route" + (i + 1));
+    		String routeName = settings.get("name").asText();
+    		// routes can't share a checkpoint or fingerprints
+    		if (!routes.get(i).containsKey("checkpointFile") && checkpointFile != null && !checkpointFile.isEmpty()) {
+    			settings.put("checkpointFile", checkpointFile + "." + routeName);
+    		}
+    		if (!routes.get(i).containsKey("fingerprintFile") && fingerprintFile != null && !fingerprintFile.isEmpty()) {
+    			settings.put("fingerprintFile", fingerprintFile + "." + routeName);
+    		}
+    		if (!routes.get(i).containsKey("recordFile") && recordFile != null && !recordFile.isEmpty()) {
+    			settings.put("recordFile", recordFile + "." + routeName);
+    		}
+    		SimpleSyncServiceManager route = mapper.treeToValue(settings, SimpleSyncServiceManager.class);
+    		route.parent = this;
+    		route.logger = LoggerFactory.getLogger(SimpleSyncServiceManager.class.getName() + "." + routeName);
+    		managers.add(route);
+    	}
+    	exportMetrics();
+    	return managers;
+    }
+    
+    private synchronized PooledClientFactory getClientFactory() {
+    	if (parent != null) return parent.getClientFactory();
+    	if (clientFactory == null) {
+    		clientFactory = new PooledClientFactory(poolMaxConnectionsPerRoute, poolMaxConnections, poolIdleTimeout);
+    	}
+    	return clientFactory;
+    }
+    
+    /**
+     * @return the registry named by metricsRegistry, or the built-in one
+     */
+    public synchronized MetricsRegistry getMetrics() {
+    	if (metrics == null) {
+    		if (parent != null) {
+    			metrics = MetricsRegistry.withLabel(parent.getMetrics(), "route", name);
+    		} else if (metricsRegistry == null || metricsRegistry.isEmpty()) {
+    			metrics = new SimpleMetricsRegistry();
+    		} else {
+    			try {
+    				metrics = Class.forName(metricsRegistry).asSubclass(MetricsRegistry.class).getDeclaredConstructor().newInstance();
+    			} catch (ReflectiveOperationException e) {
+    				throw new IllegalArgumentException("metricsRegistry : " + metricsRegistry, e);
+    			}
+    		}
+    	}
+    	return metrics;
+    }
+    
+    /**
+     * @return the dispatcher for the sink named by alertSink, started on first use
+     */
+    private synchronized AlertDispatcher getAlerts() {
+    	if (parent != null) return parent.getAlerts();
+    	if (alerts == null) {
+    		AlertSink sink;
+    		if (alertSink == null || alertSink.isEmpty() || alertSink.equals("mail")) {
+    			sink = new MailAlertSink(mailSmtpHost, mailSender, mailRecipients);
+    		} else if (alertSink.equals("log")) {
+    			sink = new LogAlertSink();
+    		} else if (alertSink.equals("file")) {
+    			sink = new FileAlertSink(Paths.get(alertFile));
+    		} else {
+    			try {
+    				sink = Class.forName(alertSink).asSubclass(AlertSink.class).getDeclaredConstructor().newInstance();
+    			} catch (ReflectiveOperationException e) {
+    				throw new IllegalArgumentException("alertSink : " + alertSink, e);
+    			}
+    		}
+    		alerts = new AlertDispatcher(sink, TimeUnit.MINUTES.toMillis(alertDigestMinutes), alertQueueSize);
+    		alerts.setMetrics(getMetrics());
+    	}
+    	return alerts;
+    }
+    
+    private synchronized TransferEngine getTransferEngine() {
+    	if (parent != null) return parent.getTransferEngine();
+    	if (transferEngine == null) {
+    		transferEngine = new TransferEngine(transferConcurrency);
+    	}
+    	return transferEngine;
+    }
+
+    private synchronized InFlightRegistry getInFlight() {
+    	if (parent != null) return parent.getInFlight();
+    	if (inFlight == null) inFlight = new InFlightRegistry(writtenVersionsMax);
+    	return inFlight;
+    }
+    
+    /**
+     * Build the source, target and sync clients on first use; they are reused by every poll.
+     */
+    private synchronized void initClients() throws GeneralSecurityException, IOException {
+    	if (service != null) return;
+    	codec.warm();
+    	if (checkpointFile != null && !checkpointFile.isEmpty()) {
+    		checkpoint = SyncCheckpoint.open(Paths.get(checkpointFile), checkpointMaxKeys);
+    		if (mruTimestamp == null) mruTimestamp = checkpoint.getMruTimestamp();
+    		logger.info("Resuming from checkpoint '{}': mruTimestamp {}, {} synced keys", checkpointFile, mruTimestamp,
+    				checkpoint.getKeys().size());
+    	}
+		if (fingerprintFile != null && !fingerprintFile.isEmpty()) {
+			fingerprints = FingerprintStore.open(Paths.get(fingerprintFile));
+			fingerprintIgnored = new HashSet<>(fingerprintIgnoreFields);
+			logger.info("Loaded {} content fingerprints from '{}'", fingerprints.size(), fingerprintFile);
+		}
+		sourceClient = initSource();
+		syncClient = initSync();
+		if (recordFile != null && !recordFile.isEmpty()) {
+			recorder = TrafficRecorder.create(Paths.get(recordFile), idField, lastModifiedField());
+			recorder.setMetrics(getMetrics());
+			sourceClient.register(recorder.filter(TrafficRecorder.SOURCE, sourceUri));
+			syncClient.register(recorder.filter(TrafficRecorder.SYNC, syncUri));
+			logger.info("Recording source and sync responses to '{}'", recordFile);
+		}
+		
+		SimpleSyncService service = new SimpleSyncService();
+		service.sourceUri = UriBuilder.fromPath(this.sourceUri).build();
+		service.setTargetUri(this.targetUri.isEmpty() ? null : UriBuilder.fromPath(this.targetUri).build());
+		service.setIdField(this.idField);
+		targetClient = initTarget();
+		service.init(sourceClient, targetClient);
+		service.setInFlightLimits(maxInFlightSource, maxInFlightTarget);
+		service.setStreaming(streamingParse);
+		service.setPassThrough(passThrough);
+		service.setCodec(codec);
+		service.setMetrics(getMetrics());
+		this.service = service;
+		
+		transferEngine = getTransferEngine();
+		inFlight = getInFlight();
+		documentCache = new DocumentCache(documentCacheSize, documentCacheMaxBytes);
+		retryQueue = new RetryQueue(retryInitialDelay, retryMaxDelay);
+		sourceBreaker = new CircuitBreaker("source", circuitBreakerThreshold, TimeUnit.SECONDS.toMillis(circuitBreakerOpenSeconds));
+		targetBreaker = new CircuitBreaker("target", circuitBreakerThreshold, TimeUnit.SECONDS.toMillis(circuitBreakerOpenSeconds));
+		syncPermits = maxInFlightSync > 0 ? new Semaphore(maxInFlightSync) : null;
+		// POST should return 409 if it already exists
+		// PUT will update lastModified and reset sync status unconditionally
+		resetWriter = new StatusWriter(syncClient, syncUri, optionSyncOnce ? "POST" : "PUT",
+				statusBatchSize, statusBatchMaxDelay, syncPermits, codec);
+		markWriter = new StatusWriter(syncClient, syncUri, "PUT", statusBatchSize, statusBatchMaxDelay, syncPermits, codec);
+		resetWriter.setMetrics(getMetrics());
+		markWriter.setMetrics(getMetrics());
+		resetWriter.setListener(this::resetWritten);
+		// what the endpoint rejected is still as it was there
+		resetWriter.setRejectListener(records -> pendingStale = true);
+		markWriter.setRejectListener(records -> pendingStale = true);
+		if (parent == null) exportMetrics();
+		if (changeFeedUri != null && !changeFeedUri.isEmpty()) {
+			changeFeed = new ChangeFeed(sourceClient, UriBuilder.fromUri(changeFeedUri).build(), changeFeedMode, idField,
+					lastModifiedField(), codec, this::syncChanges);
+			changeFeed.setMetrics(getMetrics());
+			// long polling starts from the checkpoint, then from what the cycles have committed
+			changeFeed.setSince(() -> mruTimestamp);
+			changeFeed.start();
+		}
+    }
+    
+    /**
+     * Build the clients and exercise the codecs, then open up to warmUpConnections pooled connections to each
+     * endpoint, so the first cycle doesn't pay for class loading, TLS handshakes and cold pools. The connections
+     * are opened without sending a request; an endpoint that can't be reached is left to the first cycle.
+     * @return milliseconds taken
+     */
+    public long warmUp() throws GeneralSecurityException, IOException {
+    	long start = System.nanoTime();
+    	initClients();
+    	Map<Client, String> endpoints = new LinkedHashMap<>();
+    	endpoints.put(sourceClient, sourceUri);
+    	if (targetClient != null) endpoints.put(targetClient, targetUri);
+    	endpoints.put(syncClient, syncUri);
+    	AtomicInteger opened = new AtomicInteger();
+    	if (warmUpConnections > 0) {
+    		// the endpoints in parallel, and the connections to each one in turn, resuming the first's TLS session
+    		transferEngine.transferAll(endpoints.entrySet(), endpoint -> {
+    			URI uri = UriBuilder.fromUri(endpoint.getValue()).build();
+    			PooledClientFactory.warm(endpoint.getKey(), uri);
+    			try {
+    				opened.addAndGet(getClientFactory().preconnect(endpoint.getKey(), uri, warmUpConnections, WARM_UP_TIMEOUT));
+    			} catch (IOException e) {
+    				logger.warn("Could not connect to '{}' ahead of time: {}", endpoint.getValue(), e.toString());
+    			}
+    			return true;
+    		});
+    	}
+    	long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    	getMetrics().gauge("warmup_ms", millis);
+    	logger.info("Warmed up in {} ms, {} connections opened", millis, opened.get());
+    	return millis;
     }
     
+    private synchronized void exportMetrics() throws IOException {
+		if (metricsExporter == null && metricsPort > 0 && getMetrics() instanceof SimpleMetricsRegistry) {
+			metricsExporter = new MetricsHttpExporter((SimpleMetricsRegistry) getMetrics(), metricsHost, metricsPort);
+			logger.info("Metrics at http://{}:{}/metrics", metricsHost, metricsExporter.getPort());
+		}
+    }
+    
+    /**
+     * Release pooled connections, once the cycle or change feed batch under way has finished.
+     */
+    public void close() {
+    	// in the same order as a cycle: the cycle lock, then the monitor (see initClients and getAlerts)
+    	cycleLock.lock();
+    	try {
+    		synchronized (this) {
+    			if (changeFeed != null) {
+    				changeFeed.close();
+    				changeFeed = null;
+    			}
+    			closeResources();
+    		}
+    	} finally {
+    		cycleLock.unlock();
+    	}
+    }
+
+    private void closeResources() {
+    	for (StatusWriter writer : new StatusWriter[] { resetWriter, markWriter }) {
+    		if (writer == null) continue;
+    		try {
+    			writer.close();
+    		} catch (IOException | ProcessingException e) {
+    			logger.warn("pending status updates not written: {}", e.getMessage());
+    		}
+    	}
+    	resetWriter = null;
+    	markWriter = null;
+    	if (transferEngine != null) {
+    		if (parent == null) transferEngine.close();
+    		transferEngine = null;
+    	}
+    	if (checkpoint != null) {
+    		try {
+    			checkpoint.close();
+    		} catch (IOException e) {
+    			logger.warn("checkpoint not closed: {}", e.getMessage());
+    		}
+    		checkpoint = null;
+    	}
+    	if (fingerprints != null) {
+    		try {
+    			fingerprints.close();
+    		} catch (IOException e) {
+    			logger.warn("fingerprints not closed: {}", e.getMessage());
+    		}
+    		fingerprints = null;
+    	}
+    	if (recorder != null) {
+    		try {
+    			recorder.close();
+    		} catch (IOException e) {
+    			logger.warn("recording not closed: {}", e.getMessage());
+    		}
+    		recorder = null;
+    	}
+    	if (alerts != null) {
+    		if (parent == null) alerts.close();
+    		alerts = null;
+    	}
+    	if (metricsExporter != null) {
+    		metricsExporter.close();
+    		metricsExporter = null;
+    	}
+    	if (clientFactory != null) {
+    		if (parent == null) clientFactory.close();
+    		clientFactory = null;
+    	}
+    	sourceClient = null;
+    	targetClient = null;
+    	syncClient = null;
+    	service = null;
+    }
+    
+	/**
+	 * @return milliseconds until the next document retry, or -1 if none are waiting
+	 */
+	public long getNextRetryDelay() {
+		return retryQueue == null ? -1 : retryQueue.getNextDelay();
+	}
+	
+	/**
+	 * Run one cycle.
+	 * @return true if it completed and reset or sent any documents, so more may be waiting
+	 */
+	public boolean poll() {
+		MetricsRegistry metrics = getMetrics();
+		long start = System.nanoTime();
+		long bytesSent = service == null ? 0 : service.getBytesSent();
+		try {
+			run();
+		} catch (UncheckedIOException | ProcessingException e) {
+			// the next cycle starts over from the last committed page
+			metrics.count("cycle_errors_total", 1);
+			StringWriter sw = new StringWriter();
+			e.printStackTrace(new PrintWriter(sw));
+			logger.error("Cycle failed, will retry: {}", sw);
+		}
+		metrics.record("cycle_us", MetricsRegistry.micros(start));
+		metrics.record("cycle_documents", cycleWork.get());
+		if (cycleUnchanged.get() > 0) logger.info("{} unchanged documents marked without sending.", cycleUnchanged.get());
+		if (service != null) metrics.record("cycle_bytes", service.getBytesSent() - bytesSent);
+		metrics.count(cycleCompleted ? "cycles_completed_total" : "cycles_stopped_total", 1);
+		if (retryQueue != null) metrics.gauge("retry_queue", retryQueue.size());
+		return cycleCompleted && cycleWork.get() > 0;
+	}
+	
 	public void run() {
 
+		cycleWork.set(0);
+		cycleUnchanged.set(0);
+		boolean completed = false;
+		cycleLock.lock();
 		try {
 			System.setProperty("https.protocols", "TLSv1.2");
 	        
-			Client sourceClient = initSource();
-			Client syncClient = initSync();
+			initClients();
 			
 			// On first run after startup, mruTimestamp will be null and this will 
 			// attempt to sync everything that hasn't already been sync'd.
-		    List<String> keysToRemove = getSyncRecords(syncClient, mruTimestamp)
-		    		.map(s -> optionSyncOnce ? s.id : s.id + "|" + s.lastModified)
-		    		.collect(Collectors.toList());
+		    SyncStatusIndex syncedKeys = loadSyncedKeys();
+		    // the change feed checks the same keys between cycles
+		    this.syncedKeys = changeFeed != null ? syncedKeys : null;
+
+		    // each page of modified documents is reset, sent and marked before the next one is requested
+		    URI pageUri = sourcePageUri(mruTimestamp);
+		    while (pageUri != null) {
+		    	Page<JsonArrayIterator<RawDocument>> page = getModifiedDocuments(sourceClient, pageUri);
+		    	if (!syncPage(page.items, syncedKeys)) return;
+		    	pageUri = page.next;
+		    }
+			completed = true;
+		}
+		// need to wrap checked exceptions because Runnable implementations can't throw them
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (GeneralSecurityException e) {
+			throw new SecurityException(e);
+		} finally {
+			// the local view may have missed status updates; read it back from the sync endpoint next time
+			if (!completed) pendingStale = true;
+			cycleCompleted = completed;
+			if (recorder != null) {
+				try {
+					recorder.flush();
+				} catch (IOException e) {
+					logger.warn("recording not written: {}", e.getMessage());
+				}
+			}
+			cycleLock.unlock();
+		}
+	}
+	
+	/**
+	 * Reset and send the documents the change feed reported, without waiting for the next polling cycle.
+	 * Versions the sync endpoint already has are skipped, as a polling cycle skips them. Anything that fails
+	 * here is left to the next cycle.
+	 */
+	private void syncChanges(List<StatusRecord> changes) {
+		cycleLock.lock();
+		try {
+			// closed while these were arriving
+			if (resetWriter == null) return;
+			long start = System.nanoTime();
+			if (syncedKeys == null) syncedKeys = loadSyncedKeys();
+			for (String key = markedKeys.poll(); key != null; key = markedKeys.poll()) syncedKeys.add(key);
+			Set<String> ids = new LinkedHashSet<>();
+			for (StatusRecord change : changes) {
+				// a version already waiting, or a newer one, is sent as it is
+				StatusRecord pending = pendingRecords.get(change.id);
+				if (pending != null && pending.lastModified.compareTo(change.lastModified) >= 0) {
+					ids.add(change.id);
+					continue;
+				}
+				if (syncedKeys.contains(SyncStatusIndex.key(change.id, change.lastModified, optionSyncOnce))) continue;
+				change.syncedStatus = 0;
+				resetWriter.write(change);
+				metrics.count("documents_reset_total", 1);
+				// a POST leaves a record that already exists as it was, so only the endpoint knows its status
+				if (optionSyncOnce) pendingStale = true;
+				else pendingRecords.put(change.id, change);
+				ids.add(change.id);
+			}
+			resetWriter.flush();
+			if (ids.isEmpty()) return;
+			// with optionSyncOnce, read back which of them the POSTs left pending
+			if (optionSyncOnce) getPendingRecords();
+			List<StatusRecord> toSend = new ArrayList<>();
+			for (String id : ids) {
+				StatusRecord pending = pendingRecords.get(id);
+				if (pending != null) toSend.add(pending);
+			}
+			if (!transferEngine.transferAll(toSend, this::transfer)) {
+				// a recoverable error stopped the transfers; the next cycle reads back what is still pending
+				pendingStale = true;
+				logger.warn("Changes left for the next cycle: transfer stopped");
+				return;
+			}
+			markWriter.flush();
+			if (checkpoint != null) checkpoint.commit(null);
+			if (fingerprints != null) fingerprints.commit();
+			metrics.record("change_sync_us", MetricsRegistry.micros(start));
+		} catch (IOException | RuntimeException e) {
+			pendingStale = true;
+			logger.warn("Changes left for the next cycle: {}", e.toString());
+		} finally {
+			cycleLock.unlock();
+		}
+	}
 
-		    //
-		    // reset sync status for modified docs
-		    //
-	        for (final JsonNode doc : getModifiedDocuments(sourceClient, mruTimestamp)) {
-	        	// get the ID field as specified in the config
-	        	JsonNode idNode = doc.get(this.idField);
-	        	if (idNode == null) throw new IllegalArgumentException("idField : "+idField);
-	        	String id = idNode.asText();
-	        	
-	        	String lastModified = sourceUri.contains("/images") ? 
-        				doc.get("ModifiedOn").asText() : // hack because the CDR won't let us rename this field
-        				doc.get("lastModified").asText();
-        				
-	        	// skip the records that have already been sync'ed
-	        	if (keysToRemove.contains(optionSyncOnce ? id : id + "|" + lastModified)) continue;
+	/**
+	 * @return the keys of the checkpoint and of the sync records since mruTimestamp, i.e. the versions not to send again
+	 */
+	private SyncStatusIndex loadSyncedKeys() throws IOException {
+		// anything marked before now is in the sync records
+		markedKeys.clear();
+	    SyncStatusIndex syncedKeys = new SyncStatusIndex();
+	    if (checkpoint != null) checkpoint.getKeys().forEach(syncedKeys::add);
+	    try (Stream<StatusRecord> syncRecords = getSyncRecords(syncClient, mruTimestamp)) {
+	    	syncRecords.forEach(s -> syncedKeys.add(SyncStatusIndex.key(s.id, s.lastModified, optionSyncOnce)));
+	    }
+	    return syncedKeys;
+	}
 
-        		// OK to update mruTimestamp now since we've already run the query
-        		if (mruTimestamp == null || lastModified.compareTo(mruTimestamp) > 0) mruTimestamp = lastModified;
-            	
-            	// reset sync status
-            	StatusRecord syncStatus = new StatusRecord();
-    			syncStatus.id = id;
-    			syncStatus.lastModified = lastModified;
-	        	syncStatus.syncedStatus = 0;
-	        	syncStatus.syncedTimestamp = null;
-	        	Response response = null;
+	/**
+	 * Sync one page of modified documents as a pipeline: each document is discovered and reset, and
+	 * as soon as its reset is written it is queued for a transfer worker to fetch (usually from the
+	 * document cache), send and mark, while the next ones are still being reset. Records left
+	 * pending by earlier cycles follow once the page has been read. The transfer queue is bounded
+	 * by pipelineQueueSize, so a slow target holds back the source instead of filling memory.
+	 *
+	 * With optionSyncOnce the reset (a POST) doesn't tell whether the document still needs sending,
+	 * so the whole page is reset before the pending records are read back and sent.
+	 * @return false on a recoverable error, to stop the cycle and retry at the next polling interval
+	 */
+	private boolean syncPage(JsonArrayIterator<RawDocument> page, SyncStatusIndex syncedKeys)
+			throws IOException, GeneralSecurityException {
+		    boolean pipelined = !optionSyncOnce;
+	        long transferStart = System.nanoTime();
+	        // records already pending, sent after the page; documents in the page supersede them
+	        List<StatusRecord> backlog = pipelined ? getPendingRecords() : null;
+	        Set<String> pageIds = new HashSet<>();
+	        String pageTimestamp = mruTimestamp;
+	        boolean transferred;
+	        try (TransferEngine.Batch<StatusRecord> batch = transferEngine.begin(this::transfer, pipelineQueueSize)) {
+	        	if (pipelined) sends = batch;
+		        //
+		        // reset sync status for modified docs
+		        //
+		        long reconcileStart = System.nanoTime();
+		        try (JsonArrayIterator<RawDocument> docs = page) {
+			        for (final RawDocument doc : docs) {
+			        	// get the ID field as specified in the config
+			        	if (doc.id == null) throw new IllegalArgumentException("idField : "+idField);
+			        	String id = doc.id;
+		        	
+			        	if (doc.lastModified == null) throw new IllegalArgumentException("lastModified field : "+lastModifiedField());
+			        	String lastModified = doc.lastModified;
+	        				
+			        	// skip the records that have already been sync'ed
+			        	if (syncedKeys.contains(SyncStatusIndex.key(id, lastModified, optionSyncOnce))) continue;
+			        	pageIds.add(id);
+			        	
+			        	// keep the document so the transfer stage doesn't have to fetch it again
+			        	documentCache.put(doc);
+	
+		        		// mruTimestamp only moves on once the whole page has been sent and marked
+		        		if (pageTimestamp == null || lastModified.compareTo(pageTimestamp) > 0) pageTimestamp = lastModified;
+	            	
+		            	// reset sync status
+		            	StatusRecord syncStatus = new StatusRecord();
+		    			syncStatus.id = id;
+		    			syncStatus.lastModified = lastModified;
+			        	syncStatus.syncedStatus = 0;
+			        	syncStatus.syncedTimestamp = null;
+						try {
+			        		// a POST leaves a record that already exists as it was, so only the endpoint knows its status
+			        		if (optionSyncOnce) pendingStale = true;
+			        		else pendingRecords.put(id, syncStatus);
+			        		// once written, the record goes on to the send stage (see resetWritten)
+			        		resetWriter.write(syncStatus);
+			        		cycleWork.incrementAndGet();
+			        		metrics.count("documents_reset_total", 1);
+				        } catch(ProcessingException e) {
+				        	//TODO: refine recoverable error conditions
+				        	if (!(e.getCause() instanceof ConnectException)) {
+				        		throw e;
+				        	}
+				        	sendAlert(mailSubjFailure, e.getMessage());
+				        	// For recoverable errors, retry at next polling interval instead of throwing exception
+				        	return false;
+				        }
+			        }
+		        }
 				try {
-	        		javax.ws.rs.client.Invocation.Builder builder = 
-        				syncClient.target(this.syncUri).request(MediaType.APPLICATION_JSON_TYPE);
-	        		// POST should return 409 if it already exists
-	        		// PUT will update lastModified and reset sync status unconditionally
-	        		response = optionSyncOnce ? builder.post(Entity.entity(syncStatus, MediaType.APPLICATION_JSON))
-	        				: builder.put(Entity.entity(syncStatus, MediaType.APPLICATION_JSON));
+	        		resetWriter.flush();
 		        } catch(ProcessingException e) {
 		        	//TODO: refine recoverable error conditions
 		        	if (!(e.getCause() instanceof ConnectException)) {
@@ -250,119 +886,372 @@ public class SimpleSyncServiceManager {
 		        	}
 		        	sendAlert(mailSubjFailure, e.getMessage());
 		        	// For recoverable errors, retry at next polling interval instead of throwing exception
-		        	return;
+		        	return false;
 		        }
-	        	int responseCode = response.getStatus();
-	        	if (responseCode == 409) {
-	        		// We'll should get an update conflict on a POST when the status record already exists.
-	        		continue; 
+		        metrics.record("reconcile_us", MetricsRegistry.micros(reconcileStart));
+		        
+		        //
+		        // Send the rest of the pending records
+		        //
+		        if (!pipelined) backlog = getPendingRecords();
+		        metrics.gauge("backlog", pendingRecords.size());
+		        for (StatusRecord syncStatus : backlog) {
+		        	if (pipelined && pageIds.contains(syncStatus.id)) continue;
+		        	if (!batch.submit(syncStatus)) break;
+		        }
+		        transferred = batch.finish();
+	        } finally {
+	        	sends = null;
+	        }
+	        metrics.record("transfer_us", MetricsRegistry.micros(transferStart));
+	        if (!transferred) return false;
+			try {
+        		markWriter.flush();
+        		logger.debug("document cache hits: {}, misses: {}", documentCache.getHits(), documentCache.getMisses());
+	        } catch(ProcessingException e) {
+	        	//TODO: refine recoverable error conditions
+	        	if (!(e.getCause() instanceof ConnectException)) {
+	        		throw e;
 	        	}
-	        	if (responseCode < 200 || responseCode >= 300) {
-	        		throw new IOException("unexpected response from sync status PUT: " + responseCode);
-	        	}	        	
+	        	sendAlert(mailSubjFailure, e.getMessage());
+	        	// For recoverable errors, retry at next polling interval instead of throwing exception
+	        	return false;
 	        }
-	        
-	        //
-	        // Send data and mark as sync'ed
-	        //
-			SimpleSyncService service = new SimpleSyncService();
-			service.sourceUri = UriBuilder.fromPath(this.sourceUri).build();
-			service.setSourceKeyStore(new File(this.sourceKeyStore));
-			service.sourcePassword = this.sourcePassword;
-			service.setTargetUri(this.targetUri.isEmpty() ? null : UriBuilder.fromPath(this.targetUri).build());
-			service.setTargetUsername(this.targetUsername);
-			service.targetPassword = this.targetPassword;
-			service.setIdField(this.idField);
-			service.init();
+
+	        // safe point: every document in the page has been sent and marked
+	        mruTimestamp = pageTimestamp;
+	        if (checkpoint != null) checkpoint.commit(mruTimestamp);
+	        if (fingerprints != null) fingerprints.commit();
+	        return true;
+	}
+
+	/**
+	 * Hand reset records to the send stage of the page being synced, if any. Called by the reset writer.
+	 */
+	private void resetWritten(List<StatusRecord> records) {
+		TransferEngine.Batch<StatusRecord> batch = sends;
+		if (batch == null) return;
+		for (StatusRecord syncStatus : records) {
+			if (!batch.submit(syncStatus)) return;
+		}
+	}
+
+	/**
+	 * Send one document to the target and mark it as sync'ed. Called concurrently by the transfer engine.
+	 * @return false on a recoverable error, to stop the cycle and retry at the next polling interval
+	 */
+	private boolean transfer(StatusRecord syncStatus) throws IOException, GeneralSecurityException {
+		// a document that failed recently waits for its own retry time; it stays pending until then
+		if (!retryQueue.isDue(syncStatus.id)) return true;
+		
+		// one transfer per document at a time, of its newest version; routes sharing a target share the registry
+		InFlightRegistry.Claim claim = inFlight.claim(service.getTargetUri() + syncStatus.id, syncStatus.lastModified);
+		if (claim == null) {
+			// the same or a newer version is on its way to the target, or a newer one is there. The record stays
+			// pending (unless the local view already has the newer one) and gets a status of its own next cycle,
+			// e.g. when it was another route sharing the target that sent it; the version in flight has its own
+			// retry time.
+			retryQueue.succeeded(syncStatus.id);
+			metrics.count("documents_superseded_total", 1);
+			logger.info("key: {}, version {} superseded, left pending.", syncStatus.id, syncStatus.lastModified);
+			return true;
+		}
+		try {
+			return transferClaimed(syncStatus, claim);
+		} catch (ProcessingException | UncheckedIOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			// e.g. a source response with no id in it; one bad document mustn't stop the route
+			return retryLater(syncStatus, "document", e.toString());
+		} finally {
+			inFlight.release(claim);
+		}
+	}
+
+	/**
+	 * Transfer a version this thread has claimed.
+	 */
+	private boolean transferClaimed(StatusRecord syncStatus, InFlightRegistry.Claim claim)
+			throws IOException, GeneralSecurityException {
+		// Get this entity, from the cache if it holds this version
+		RawDocument doc = documentCache.get(syncStatus.id, syncStatus.lastModified);
+		if (doc == null) {
+			if (!sourceBreaker.allowRequest()) {
+				retryQueue.postpone(syncStatus.id);
+				return true;
+			}
+			URI documentUri = UriBuilder.fromUri(this.sourceUri).path(syncStatus.id).build();
+			boolean failed = false;
+			try {
+				doc = service.fetch(documentUri);
+			} catch(ProcessingException e) {
+				failed = true;
+				breakerFailure(sourceBreaker, e.getMessage());
+				return retryLater(syncStatus, "source", e.getMessage());
+			} catch(IOException e) {
+				// e.g. 404 for this document; the source itself is up
+				return retryLater(syncStatus, "source", e.getMessage());
+			} finally {
+				// anything but a connection failure means the source answered
+				if (!failed) sourceBreaker.success();
+			}
+		}
+		
+		// Skip the target if it already has this content
+		long fingerprint = 0;
+		boolean unchanged = false;
+		if (fingerprints != null) {
+			fingerprint = ContentFingerprint.of(doc.bytes, codec.getFactory(), fingerprintIgnored);
+			unchanged = fingerprints.matches(syncStatus.id, fingerprint);
+		}
+		int responseCode;
+		if (unchanged) {
+			responseCode = 200;
+			claim.written();
+			retryQueue.succeeded(syncStatus.id);
+			logger.info("key: {}, content unchanged, not sent.", syncStatus.id);
+			cycleUnchanged.incrementAndGet();
+			metrics.count("documents_unchanged_total", 1);
+		} else {
+			// Send it; nothing can be sent while the target is down, so stop the cycle
+			if (!targetBreaker.allowRequest()) {
+				retryQueue.postpone(syncStatus.id);
+				return false;
+			}
+			Response response = null;
+			try {
+				response = service.send(doc);
+			} catch(ProcessingException e) {
+				breakerFailure(targetBreaker, e.getMessage());
+				return retryLater(syncStatus, "target", e.getMessage());
+			} catch(RuntimeException e) {
+				// e.g. a document that couldn't be sent at all; the target wasn't asked
+				targetBreaker.release();
+				throw e;
+			}
+			responseCode = response.getStatus();
+			if (isTransient(responseCode)) {
+				response.close();
+				breakerFailure(targetBreaker, "response " + responseCode);
+				return retryLater(syncStatus, "target", "response " + responseCode);
+			}
+			targetBreaker.success();
+			if (responseCode < 300) claim.written();
+			retryQueue.succeeded(syncStatus.id);
+			logger.info("key: {}, response: {}.", syncStatus.id, responseCode);
+			if (responseCode >= 400) {
+				String responseMsg = response.readEntity(String.class);
+				logger.error("Error message from target: {}", responseMsg);
 			
-	        List<StatusRecord> syncStatusList = getSyncRecords(syncClient)
-					.filter(s -> s.syncedStatus == 0)
-					.collect(Collectors.toList());
-	        for (StatusRecord syncStatus : syncStatusList) {        	
-	        	// Send this entity
-	        	service.sourceUri = UriBuilder.fromUri(this.sourceUri).path(syncStatus.id).build();
-	        	Response response = null;
-				try {
-	        		response = service.run();
-	        	} catch(ProcessingException e) {
-		        	//TODO: refine recoverable error conditions
-		        	if (!(e.getCause() instanceof ConnectException)) {
-		        		throw e;
-		        	}
-		        	// For recoverable errors, retry at next polling interval instead of throwing exception
-		        	return;
-		        }
-    			int responseCode = response.getStatus();
-    			logger.info("key: {}, response: {}.", syncStatus.id, responseCode);
-    			if (responseCode >= 400) {
-    				String responseMsg = response.readEntity(String.class);
-    				logger.error("Error message from target: {}", responseMsg);
-    			
-    				if (responseCode == 500) {
-    					sendAlert(mailSubjFailure, "Server error from target '" + service.getTargetUri() + "', response: "
-    							+ responseMsg);
-    				}
-    			}
-    			
-    			// Update sync status
-	        	syncStatus.syncedStatus = responseCode;
-	        	syncStatus.syncedTimestamp = LocalDateTime.now().toString();
-	        	try {
-	        		response = syncClient.target(syncUri)
-	        			.request(MediaType.APPLICATION_JSON_TYPE)
-	        			.put(Entity.entity(syncStatus, MediaType.APPLICATION_JSON));
-		        } catch(ProcessingException e) {
-		        	//TODO: refine recoverable error conditions
-		        	if (!(e.getCause() instanceof ConnectException)) {
-		        		throw e;
-		        	}
-		        	sendAlert(mailSubjFailure, e.getMessage());
-		        	// For recoverable errors, retry at next polling interval instead of throwing exception
-		        	return;
-		        }
-	        	responseCode = response.getStatus();
-	        	if (responseCode < 200 || responseCode >= 300) {
-	        		throw new IOException("unexpected response from sync status PUT: " + responseCode);
-	        	}	        	
-	        }
+				if (responseCode == 500) {
+					sendAlert(mailSubjFailure, "Server error from target '" + service.getTargetUri() + "', response: "
+							+ responseMsg);
+				}
+			} else {
+				response.close();
+			}
 		}
-		// need to wrap checked exceptions because Runnable implementations can't throw them
-		catch (IOException e) {
-			throw new UncheckedIOException(e);
-		} catch (GeneralSecurityException e) {
-			throw new SecurityException(e);
-		} catch (MessagingException e) {
-			throw new RuntimeException(e);
+		documentCache.remove(syncStatus.id);
+		
+		// Update sync status
+		syncStatus.syncedStatus = responseCode;
+		syncStatus.syncedTimestamp = LocalDateTime.now().toString();
+		try {
+			markWriter.write(syncStatus);
+			cycleWork.incrementAndGet();
+			if (!unchanged) metrics.count("documents_sent_total", 1);
+			pendingRecords.remove(syncStatus.id, syncStatus);
+			String key = SyncStatusIndex.key(syncStatus.id, syncStatus.lastModified, optionSyncOnce);
+			if (checkpoint != null) checkpoint.addKey(key);
+			if (changeFeed != null) markedKeys.add(key);
+			// only once the status is written, so a failed mark sends the document again
+			if (fingerprints != null && !unchanged && responseCode < 300) fingerprints.put(syncStatus.id, fingerprint);
+		} catch(ProcessingException e) {
+			//TODO: refine recoverable error conditions
+			if (!(e.getCause() instanceof ConnectException)) {
+				throw e;
+			}
+			sendAlert(mailSubjFailure, e.getMessage());
+			// For recoverable errors, retry at next polling interval instead of throwing exception
+			return false;
 		}
+		return true;
 	}
 
-	private JsonNode getModifiedDocuments(Client client, String date) throws IOException {
+	/**
+	 * Leave a document pending and schedule its next attempt, without holding up the others.
+	 * @return true, to carry on with the cycle
+	 */
+	private boolean retryLater(StatusRecord syncStatus, String endpoint, String message) {
+		long delay = retryQueue.failed(syncStatus.id);
+		metrics.count("transfer_retries_total{endpoint=\"" + endpoint + "\"}", 1);
+		logger.warn("key: {}, {} failed ({}), attempt {}, retry in {} ms.", syncStatus.id, endpoint, message,
+				retryQueue.getAttempts(syncStatus.id), delay);
+		return true;
+	}
+	
+	private void breakerFailure(CircuitBreaker breaker, String message) {
+		if (breaker.failure()) {
+			metrics.count("circuit_breaker_opened_total{endpoint=\"" + breaker.getName() + "\"}", 1);
+			logger.error("{} unavailable, pausing requests for {} s: {}", breaker.getName(), circuitBreakerOpenSeconds,
+					message);
+			sendAlert(mailSubjFailure, breaker.getName() + " unavailable: " + message);
+		}
+	}
+	
+	/**
+	 * @return true for target responses worth retrying rather than recording as the document's sync status
+	 */
+	private static boolean isTransient(int responseCode) {
+		return responseCode == 408 || responseCode == 429 || responseCode == 502 || responseCode == 503
+				|| responseCode == 504;
+	}
+	
+	private String lastModifiedField() {
+		if (lastModifiedField != null && !lastModifiedField.isEmpty()) return lastModifiedField;
+		// hack because the CDR won't let us rename this field
+		return sourceUri.contains("/images") ? "ModifiedOn" : "lastModified";
+	}
+	
+	private URI sourcePageUri(String date) {
+		UriBuilder uriBuilder = UriBuilder.fromUri(this.sourceUri);
+		if (date != null) uriBuilder = uriBuilder.queryParam("starttime", date);
+		if (sourcePageSize > 0) uriBuilder = uriBuilder.queryParam("pageSize", sourcePageSize);
+		return uriBuilder.build();
+	}
+	
+	/**
+	 * @return one page of modified documents, as their source bytes with the id and lastModified fields pulled out
+	 */
+	private Page<JsonArrayIterator<RawDocument>> getModifiedDocuments(Client client, URI uri) throws IOException {
 		// GET
-    	Response response = client.target(this.sourceUri).queryParam("starttime", date).request().get();
+		long start = System.nanoTime();
+    	Response response = client.target(uri).request().get();
+    	metrics.record("source_query_us", MetricsRegistry.micros(start));
     	int httpCode = response.getStatus();
+    	metrics.count(MetricsRegistry.status("source_responses_total", httpCode), 1);
         if (httpCode < 200 || httpCode >= 300) {
+        	response.close();
         	throw new IOException("unexpected response from '" + sourceUri + "': " + httpCode);
         }
-        String sourceData = response.readEntity(String.class);
-        JsonNode jsonRoot = new ObjectMapper().readTree(sourceData);
-        if (jsonRoot.size() == 1 && jsonRoot.elements().next().isArray()) {
-        	return jsonRoot.elements().next();        	
+        URI next = nextPage(response, uri, sourcePageSize);
+        JsonFactory factory = codec.getFactory();
+        String lastModifiedField = lastModifiedField();
+        if (streamingParse) {
+        	// documents are parsed as they arrive; the connection is released once they've all been read
+        	JsonParser parser = factory.createParser(response.readEntity(InputStream.class));
+        	return new Page<>(new JsonArrayIterator<>(parser, p -> RawDocument.copy(p, factory, idField, lastModifiedField)),
+        			next);
         }
-        return jsonRoot;
+        byte[] body = response.readEntity(byte[].class);
+        return new Page<>(new JsonArrayIterator<>(body, factory,
+        		p -> RawDocument.slice(p, body, idField, lastModifiedField)), next);
+	}
+	
+	/**
+	 * @return the records still to be sent, from the local view, which is re-read from the sync endpoint on the
+	 * first cycle, every syncPendingRefreshSeconds, and after a cycle that may have left it out of date
+	 */
+	private List<StatusRecord> getPendingRecords() throws IOException {
+		if (pendingStale || System.nanoTime() - pendingRefreshedNanos >= TimeUnit.SECONDS.toNanos(syncPendingRefreshSeconds)) {
+			Map<String, StatusRecord> refreshed = new ConcurrentHashMap<>();
+	        try (Stream<StatusRecord> syncRecords = getSyncRecords(syncClient, null, true)) {
+	        	// the endpoint may not support the pending query, so filter here too
+	        	syncRecords.filter(s -> s.syncedStatus == 0).forEach(s -> refreshed.put(s.id, s));
+	        }
+	        if (lastExceptionMessage.isPresent()) return new ArrayList<>(); // sync endpoint unreachable
+	        pendingRecords = refreshed;
+	        // documents synced or dropped meanwhile are no longer retried
+	        retryQueue.retainAll(refreshed.keySet());
+	        pendingStale = false;
+	        pendingRefreshedNanos = System.nanoTime();
+		}
+		return new ArrayList<>(pendingRecords.values());
 	}
 	
-	private Stream<StatusRecord> getSyncRecords(Client client) throws MessagingException, IOException {
-		return getSyncRecords(client, null);
+	private Stream<StatusRecord> getSyncRecords(Client client, String date) throws IOException {
+		return getSyncRecords(client, date, false);
+	}
+	
+	/**
+	 * @param pendingOnly ask the endpoint for unsynced records only
+	 * @return the records of every page; the next page is requested once the previous one has been read
+	 */
+	private Stream<StatusRecord> getSyncRecords(Client client, String date, boolean pendingOnly)
+			throws IOException {
+    	UriBuilder syncUriBuilder = UriBuilder.fromUri(syncUri);
+    	if (date != null && !date.isEmpty())
+    		syncUriBuilder = syncUriBuilder.queryParam("starttime", date);
+    	if (pendingOnly && syncPendingQuery != null && !syncPendingQuery.isEmpty())
+    		syncUriBuilder = syncUriBuilder.replaceQuery(join(syncUriBuilder.build().getRawQuery(), syncPendingQuery));
+    	if (syncPageSize > 0)
+    		syncUriBuilder = syncUriBuilder.queryParam("pageSize", syncPageSize);
+    	
+    	Page<Stream<StatusRecord>> first = getSyncPage(client, syncUriBuilder.build());
+    	if (first.next == null) return first.items;
+    	Iterator<Stream<StatusRecord>> pages = new Iterator<Stream<StatusRecord>>() {
+    		private Page<Stream<StatusRecord>> page = first;
+    		private URI next;
+    		
+    		// the following page is only requested once the previous one has been read
+			@Override
+			public boolean hasNext() {
+				if (page == null && next != null) {
+					try {
+						page = getSyncPage(client, next);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				return page != null;
+			}
+
+			@Override
+			public Stream<StatusRecord> next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				Stream<StatusRecord> records = page.items;
+				next = page.next;
+				page = null;
+				return records;
+			}
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED), false)
+				.flatMap(p -> p);
 	}
 	
-	private Stream<StatusRecord> getSyncRecords(Client client, String date) throws MessagingException, IOException {
+	private static String join(String query, String more) {
+		return query == null || query.isEmpty() ? more : query + "&" + more;
+	}
+	
+	/**
+	 * One page of a paged GET, and the page after it, if any.
+	 */
+	private static class Page<T> {
+		final T items;
+		final URI next;
+		
+		Page(T items, URI next) {
+			this.items = items;
+			this.next = next;
+		}
+	}
+	
+	/**
+	 * @return the Link rel="next" of a paged response, resolved against the request URI
+	 */
+	private static URI nextPage(Response response, URI uri, int pageSize) {
+        Link nextLink = pageSize > 0 ? response.getLink("next") : null;
+        return nextLink == null ? null : uri.resolve(nextLink.getUri());
+	}
+	
+	private Page<Stream<StatusRecord>> getSyncPage(Client client, URI uri) throws IOException {
 						
         Response response = null;
         try {
-        	UriBuilder syncUriBuilder = UriBuilder.fromUri(syncUri);
-        	if (date != null && !date.isEmpty())
-        		syncUriBuilder = syncUriBuilder.queryParam("starttime", date);
-        	response = client.target(syncUriBuilder.build()).request().get();
+        	long start = System.nanoTime();
+        	response = client.target(uri).request().get();
+        	metrics.record("sync_get_us", MetricsRegistry.micros(start));
+        	metrics.count(MetricsRegistry.status("sync_responses_total", response.getStatus()), 1);
         	if (lastExceptionMessage.isPresent()) {
         		lastExceptionMessage = Optional.empty();
         		sendAlert(mailSubjSuccess, mailBodySuccess);
@@ -372,35 +1261,35 @@ public class SimpleSyncServiceManager {
         	if (!(e.getCause() instanceof ConnectException)) {
         		throw e;
         	}
+        	metrics.count("sync_connect_errors_total", 1);
         	if (!lastExceptionMessage.isPresent() || lastExceptionMessage.get() != e.getMessage()) {
 	        	lastExceptionMessage = Optional.of(e.getMessage());
 	        	sendAlert(mailSubjFailure, e.getMessage());
         	}
         	// For recoverable errors, retry at next polling interval instead of throwing exception
-        	return new ArrayList<StatusRecord>().stream();
+        	return new Page<>(new ArrayList<StatusRecord>().stream(), null);
         }
         int responseCode = response.getStatus();
         if (responseCode < 200 || responseCode >= 300) {
+        	response.close();
         	throw new IOException("unexpected response from sync status GET: " + responseCode);
         }
-        WrappedJsonArray<StatusRecord> wrapper = response.readEntity(new GenericType<WrappedJsonArray<StatusRecord>>() {});
+        URI next = nextPage(response, uri, syncPageSize);
+        Stream<StatusRecord> syncStatusList;
+        if (streamingParse) {
+        	syncStatusList = new JsonArrayIterator<StatusRecord>(response.readEntity(InputStream.class), codec.statusReader).stream();
+        } else {
+	        WrappedJsonArray<StatusRecord> wrapper = codec.statusArrayReader.readValue(response.readEntity(byte[].class));
+	        syncStatusList = Arrays.stream(wrapper.d);
+        }
         
         // filter sync list for synced==false
-        Stream<StatusRecord> syncStatusList = Arrays.stream(wrapper.d);
         		//.filter(x -> x.syncedStatus == 0)
         		//.collect(Collectors.toList());
-        return syncStatusList;
+        return new Page<>(syncStatusList, next);
 	}
 
-	private void sendAlert(String subject, String message) throws MessagingException {
-    	Properties props = new Properties();
-        props.put("mail.smtp.host", mailSmtpHost);
-        Session session = Session.getInstance(props, null);
-        MimeMessage msg = new MimeMessage(session);
-        msg.setFrom(mailSender);
-        msg.setRecipients(Message.RecipientType.TO, mailRecipients);
-        msg.setSubject(subject);
-        msg.setText(message);
-        Transport.send(msg);
+	private void sendAlert(String subject, String message) {
+		getAlerts().alert(parent == null ? subject : "[" + name + "] " + subject, message);
 	}
 }
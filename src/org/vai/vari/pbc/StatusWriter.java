@@ -0,0 +1,271 @@
+package org.vai.vari.pbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vai.vari.pbc.SimpleSyncServiceManager.StatusRecord;
+import org.vai.vari.pbc.SimpleSyncServiceManager.WrappedJsonArray;
+
+/**
+ * Writes sync status records, either one request per record or batched as
+ * a JSON array once {@code batchSize} records are queued or the oldest
+ * queued record is {@code maxDelay} milliseconds old.
+ *
+ * A batch response is expected to carry per-item results as
+ * <code>{"d":[{"id":..., "status":...}, ...]}</code>. Records the endpoint rejects
+ * are logged and handed to the reject listener; the rest of the batch counts as
+ * written. If the sync endpoint doesn't take array bodies at all (404, 405, 415
+ * or 501), the writer falls back to single-record requests; any other error,
+ * such as a 400 for a bad record, fails the batch.
+ */
+public class StatusWriter implements Closeable {
+
+	public static class BatchResult {
+		public String id;
+		public int status;
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(StatusWriter.class);
+	private final Client client;
+	private final String syncUri;
+	private final String method;
+	private final int batchSize;
+	private final long maxDelay;
+	private final Semaphore permits;
+	private final ScheduledExecutorService timer;
+	private final JsonCodec codec;
+	private MetricsRegistry metrics = MetricsRegistry.NONE;
+	private volatile Consumer<List<StatusRecord>> listener;
+	private volatile Consumer<List<StatusRecord>> rejectListener;
+
+	private List<StatusRecord> batch = new ArrayList<>();
+	// held while flushing, so a flush waits for a timed flush already sending
+	private final Object flushLock = new Object();
+	private volatile boolean batchSupported = true;
+	// failure from a timed flush, reported by the next write or flush
+	private RuntimeException timedFlushFailure;
+	private IOException timedFlushIOFailure;
+
+	/**
+	 * @param method "POST" or "PUT"
+	 * @param batchSize 1 or less to send every record on its own
+	 * @param permits optional limit on requests in flight to the sync endpoint
+	 */
+	public StatusWriter(Client client, String syncUri, String method, int batchSize, long maxDelay, Semaphore permits,
+			JsonCodec codec) {
+		this.client = client;
+		this.syncUri = syncUri;
+		this.method = method;
+		this.batchSize = batchSize;
+		this.maxDelay = maxDelay;
+		this.permits = permits;
+		this.codec = codec;
+		if (batchSize > 1 && maxDelay > 0) {
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "status-writer");
+				t.setDaemon(true);
+				return t;
+			});
+		} else {
+			timer = null;
+		}
+	}
+
+	/**
+	 * Report sync request latencies, response codes and records written.
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Be told about the records of each request the sync endpoint accepted, on the thread that sent
+	 * it (a writer, a flush or the batch timer); null to stop.
+	 */
+	public void setListener(Consumer<List<StatusRecord>> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Be told about the records of a batch the sync endpoint rejected, while it accepted the others.
+	 */
+	public void setRejectListener(Consumer<List<StatusRecord>> rejectListener) {
+		this.rejectListener = rejectListener;
+	}
+
+	public void write(StatusRecord record) throws IOException {
+		if (batchSize <= 1 || !batchSupported) {
+			send(record);
+			return;
+		}
+		List<StatusRecord> full = null;
+		synchronized (this) {
+			rethrowTimedFlushFailure();
+			batch.add(record);
+			if (batch.size() >= batchSize) {
+				full = batch;
+				batch = new ArrayList<>();
+			} else if (batch.size() == 1 && timer != null) {
+				timer.schedule(this::timedFlush, maxDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (full != null) sendBatch(full);
+	}
+
+	/**
+	 * Send any queued records and wait for the result, including a timed flush already under way.
+	 */
+	public void flush() throws IOException {
+		synchronized (flushLock) {
+			List<StatusRecord> pending;
+			synchronized (this) {
+				rethrowTimedFlushFailure();
+				pending = batch;
+				batch = new ArrayList<>();
+			}
+			if (!pending.isEmpty()) sendBatch(pending);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			if (timer != null) timer.shutdown();
+		}
+	}
+
+	private void timedFlush() {
+		try {
+			flush();
+		} catch (IOException e) {
+			synchronized (this) {
+				timedFlushIOFailure = e;
+			}
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				timedFlushFailure = e;
+			}
+		}
+	}
+
+	private void rethrowTimedFlushFailure() throws IOException {
+		IOException ioe = timedFlushIOFailure;
+		RuntimeException re = timedFlushFailure;
+		timedFlushIOFailure = null;
+		timedFlushFailure = null;
+		if (ioe != null) throw ioe;
+		if (re != null) throw re;
+	}
+
+	private void sendBatch(List<StatusRecord> records) throws IOException {
+		if (records.size() == 1 || !batchSupported) {
+			for (StatusRecord record : records) send(record);
+			return;
+		}
+		Response response = request(Entity.entity(codec.writer.writeValueAsBytes(records), MediaType.APPLICATION_JSON),
+				records.size());
+		int responseCode = response.getStatus();
+		if (isUnsupported(responseCode)) {
+			response.close();
+			batchSupported = false;
+			for (StatusRecord record : records) send(record);
+			return;
+		}
+		if (responseCode < 200 || responseCode >= 300) {
+			response.close();
+			throw new IOException("unexpected response from sync status " + method + " batch: " + responseCode);
+		}
+		Map<String, Integer> failed = new HashMap<>();
+		if (!response.hasEntity()) {
+			response.close();
+		} else {
+			byte[] body = response.readEntity(byte[].class);
+			WrappedJsonArray<BatchResult> results = body.length == 0 ? null : codec.batchResultReader.readValue(body);
+			if (results != null && results.d != null) {
+				for (BatchResult result : results.d) {
+					if (!isWritten(result.status)) failed.put(result.id, result.status);
+				}
+			}
+		}
+		if (failed.isEmpty()) {
+			written(records);
+			return;
+		}
+		// the others were written; a rejected record stays as it was on the endpoint, and is read back from there
+		List<StatusRecord> accepted = new ArrayList<>(records.size());
+		List<StatusRecord> rejected = new ArrayList<>(failed.size());
+		for (StatusRecord record : records) {
+			(failed.containsKey(record.id) ? rejected : accepted).add(record);
+		}
+		metrics.count("sync_records_failed_total", failed.size());
+		logger.warn("Sync status {} batch: {} of {} records rejected: {}", method, failed.size(), records.size(), failed);
+		if (!accepted.isEmpty()) written(accepted);
+		Consumer<List<StatusRecord>> rejectListener = this.rejectListener;
+		if (rejectListener != null && !rejected.isEmpty()) rejectListener.accept(rejected);
+	}
+
+	private void send(StatusRecord record) throws IOException {
+		Response response = request(Entity.entity(codec.writer.writeValueAsBytes(record), MediaType.APPLICATION_JSON), 1);
+		int responseCode = response.getStatus();
+		response.close(); // return the connection to the pool
+		check(responseCode, record.id);
+		written(Collections.singletonList(record));
+	}
+
+	private void written(List<StatusRecord> records) {
+		Consumer<List<StatusRecord>> listener = this.listener;
+		if (listener != null) listener.accept(records);
+	}
+
+	private Response request(Entity<?> entity, int records) {
+		if (permits != null) permits.acquireUninterruptibly();
+		try {
+			long start = System.nanoTime();
+			Response response = client.target(syncUri).request(MediaType.APPLICATION_JSON_TYPE).method(method, entity);
+			metrics.record("sync_" + method.toLowerCase() + "_us", MetricsRegistry.micros(start));
+			metrics.count(MetricsRegistry.status("sync_responses_total", response.getStatus()), 1);
+			metrics.count("sync_records_written_total", records);
+			return response;
+		} finally {
+			if (permits != null) permits.release();
+		}
+	}
+
+	private void check(int responseCode, String id) throws IOException {
+		if (!isWritten(responseCode)) {
+			throw new IOException("unexpected response from sync status " + method + " for '" + id + "': " + responseCode);
+		}
+	}
+
+	private boolean isWritten(int responseCode) {
+		// We'll should get an update conflict on a POST when the status record already exists.
+		if (responseCode == 409 && "POST".equals(method)) return true;
+		return responseCode >= 200 && responseCode < 300;
+	}
+
+	/**
+	 * @return true if a batch response means the endpoint has no batch support, rather than that the batch was bad
+	 */
+	private static boolean isUnsupported(int responseCode) {
+		return responseCode == 404 || responseCode == 405 || responseCode == 415 || responseCode == 501;
+	}
+}
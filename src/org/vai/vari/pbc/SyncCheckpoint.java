@@ -0,0 +1,155 @@
+package org.vai.vari.pbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local record of the sync high-water mark (mruTimestamp) and the most recently
+ * synced id|lastModified keys, so a restart resumes where the last run left off
+ * instead of querying the full history again.
+ *
+ * The file is append-only, one entry per line: <code>T&lt;tab&gt;timestamp</code> or
+ * <code>K&lt;tab&gt;key</code>. The last T line wins. A line torn by a crash is dropped
+ * on open. Entries are only written and fsynced by {@link #commit(String)}, which
+ * the caller runs once the sync endpoint has the matching status records; the file
+ * is rewritten with just the live entries when it grows past twice the key limit.
+ */
+public class SyncCheckpoint implements Closeable {
+
+	private final Path file;
+	private final int maxKeys;
+	private final ArrayDeque<String> keys = new ArrayDeque<>();
+	private final List<String> uncommittedKeys = new ArrayList<>();
+	private String mruTimestamp;
+	private FileChannel channel;
+	private int lines;
+
+	private SyncCheckpoint(Path file, int maxKeys) {
+		this.file = file;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Load the checkpoint, creating the file if it doesn't exist.
+	 * @param maxKeys the most synced keys kept
+	 */
+	public static SyncCheckpoint open(Path file, int maxKeys) throws IOException {
+		SyncCheckpoint checkpoint = new SyncCheckpoint(file, maxKeys);
+		checkpoint.load();
+		return checkpoint;
+	}
+
+	/**
+	 * @return the high-water mark of the last committed cycle, or null
+	 */
+	public synchronized String getMruTimestamp() {
+		return mruTimestamp;
+	}
+
+	/**
+	 * @return the most recently committed synced keys, oldest first
+	 */
+	public synchronized List<String> getKeys() {
+		return new ArrayList<>(keys);
+	}
+
+	/**
+	 * Queue a synced key for the next commit. Safe to call concurrently.
+	 */
+	public synchronized void addKey(String key) {
+		uncommittedKeys.add(key);
+	}
+
+	/**
+	 * Append the queued keys and the high-water mark, and fsync.
+	 * @param mruTimestamp null to leave it unchanged
+	 */
+	public synchronized void commit(String mruTimestamp) throws IOException {
+		boolean changed = mruTimestamp != null && !mruTimestamp.equals(this.mruTimestamp);
+		if (uncommittedKeys.isEmpty() && !changed) return;
+		StringBuilder entries = new StringBuilder();
+		for (String key : uncommittedKeys) {
+			entries.append("K\t").append(key).append('\n');
+			addLoadedKey(key);
+			lines++;
+		}
+		uncommittedKeys.clear();
+		if (changed) {
+			entries.append("T\t").append(mruTimestamp).append('\n');
+			this.mruTimestamp = mruTimestamp;
+			lines++;
+		}
+		if (lines > 2 * maxKeys + 1) {
+			compact();
+		} else {
+			write(channel, entries);
+			channel.force(false);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) channel.close();
+		channel = null;
+	}
+
+	private void load() throws IOException {
+		int good = 0;
+		if (Files.exists(file)) {
+			byte[] content = Files.readAllBytes(file);
+			int start = 0;
+			for (int i = 0; i < content.length; i++) {
+				if (content[i] != '\n') continue;
+				String line = new String(content, start, i - start, StandardCharsets.UTF_8);
+				if (line.startsWith("T\t")) {
+					mruTimestamp = line.substring(2);
+				} else if (line.startsWith("K\t")) {
+					addLoadedKey(line.substring(2));
+				}
+				lines++;
+				start = good = i + 1;
+			}
+		}
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// drop a partial last line left by a crash
+		channel.truncate(good);
+		channel.position(good);
+	}
+
+	private void addLoadedKey(String key) {
+		keys.addLast(key);
+		while (keys.size() > maxKeys) keys.removeFirst();
+	}
+
+	private void compact() throws IOException {
+		StringBuilder entries = new StringBuilder();
+		for (String key : keys) entries.append("K\t").append(key).append('\n');
+		if (mruTimestamp != null) entries.append("T\t").append(mruTimestamp).append('\n');
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(out, entries);
+			out.force(false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel.close();
+		channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		lines = keys.size() + (mruTimestamp != null ? 1 : 0);
+	}
+
+	private static void write(FileChannel channel, CharSequence entries) throws IOException {
+		ByteBuffer buffer = StandardCharsets.UTF_8.encode(entries.toString());
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+}
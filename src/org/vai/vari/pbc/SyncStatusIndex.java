@@ -0,0 +1,93 @@
+package org.vai.vari.pbc;
+
+/**
+ * Compact open-addressing hash set of status keys.
+ *
+ * Keys are either the document id (optionSyncOnce) or id|lastModified, so a
+ * lookup for each modified document is constant time regardless of how many
+ * status records the sync endpoint returned.
+ */
+public class SyncStatusIndex {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private String[] keys;
+	private int[] hashes;
+	private int size;
+	private int threshold;
+
+	public SyncStatusIndex() {
+		this(MIN_CAPACITY);
+	}
+
+	public SyncStatusIndex(int expectedSize) {
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	public static String key(String id, String lastModified, boolean syncOnce) {
+		return syncOnce ? id : id + "|" + lastModified;
+	}
+
+	/**
+	 * @return true if the key was not already present
+	 */
+	public boolean add(String key) {
+		if (key == null) throw new IllegalArgumentException("key");
+		int h = hash(key);
+		int mask = keys.length - 1;
+		int i = h & mask;
+		while (keys[i] != null) {
+			if (hashes[i] == h && keys[i].equals(key)) return false;
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		hashes[i] = h;
+		if (++size > threshold) resize();
+		return true;
+	}
+
+	public boolean contains(String key) {
+		if (key == null) return false;
+		int h = hash(key);
+		int mask = keys.length - 1;
+		int i = h & mask;
+		while (keys[i] != null) {
+			if (hashes[i] == h && keys[i].equals(key)) return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	private void resize() {
+		String[] oldKeys = keys;
+		int[] oldHashes = hashes;
+		allocate(oldKeys.length << 1);
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == null) continue;
+			int i = oldHashes[j] & mask;
+			while (keys[i] != null) i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			hashes[i] = oldHashes[j];
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		hashes = new int[capacity];
+		// keep the load factor at 2/3 so probe sequences stay short
+		threshold = capacity / 3 * 2;
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity / 3 * 2 < expectedSize) capacity <<= 1;
+		return capacity;
+	}
+
+	private static int hash(String key) {
+		// spread the String hash so that similar ids don't cluster
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,227 @@
+package org.vai.vari.pbc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Records the responses of the source and sync endpoints to a local file, for
+ * {@link ReplayEndpoints} to serve later. Register {@link #filter(byte, String)} on a
+ * client and each successful GET under the given URI is recorded, its body read
+ * into memory first (so recording gives up streaming parses).
+ *
+ * The file is gzipped, one gzip member per recorder, so a manager restarted with the
+ * same file appends to it. Each member starts with a header (kind H, magic, idField,
+ * lastModifiedField, wall-clock start) followed by one entry per response: kind,
+ * milliseconds since the start, request URI, Link header, and the length-prefixed body.
+ * A file cut short by a crash is read up to its last whole entry, and rewritten that
+ * way before anything is appended, as the torn member would hide the ones after it.
+ */
+public class TrafficRecorder implements Closeable {
+
+	/** A response from the source, with modified documents or one document. */
+	public static final byte SOURCE = 'S';
+	/** A snapshot (or page) of the sync table. */
+	public static final byte SYNC = 'Y';
+	private static final byte HEADER = 'H';
+
+	private static final int MAGIC = 0x53535232; // SSR2
+	private static final MediaType EVENT_STREAM = new MediaType("text", "event-stream");
+
+	public interface Visitor {
+		/**
+		 * @param start wall-clock time the entries' offsets count from, that of the first recorder
+		 */
+		void header(String idField, String lastModifiedField, long start) throws IOException;
+
+		/**
+		 * @param link null if the response had no Link header
+		 */
+		void entry(byte kind, long offsetMillis, String uri, String link, byte[] body) throws IOException;
+	}
+
+	private final DataOutputStream out;
+	private final long start = System.currentTimeMillis();
+	private MetricsRegistry metrics = MetricsRegistry.NONE;
+
+	private TrafficRecorder(Path file, String idField, String lastModifiedField) throws IOException {
+		out = open(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		writeHeader(out, idField, lastModifiedField, start);
+	}
+
+	/**
+	 * Start recording, after what the file already holds.
+	 */
+	public static TrafficRecorder create(Path file, String idField, String lastModifiedField) throws IOException {
+		if (Files.exists(file) && Files.size(file) > 0 && !read(file, null)) rewrite(file);
+		return new TrafficRecorder(file, idField, lastModifiedField);
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param uriPrefix only requests to URIs starting with this are recorded
+	 */
+	public ClientResponseFilter filter(final byte kind, final String uriPrefix) {
+		return new ClientResponseFilter() {
+			public void filter(ClientRequestContext request, ClientResponseContext response) throws IOException {
+				String uri = request.getUri().toString();
+				if (!HttpMethod.GET.equals(request.getMethod()) || !uri.startsWith(uriPrefix)) return;
+				if (request.getProperty(PooledClientFactory.WARM_UP) != null) return;
+				if (response.getStatus() < 200 || response.getStatus() >= 300) return;
+				// a change feed stream never ends
+				if (EVENT_STREAM.isCompatible(response.getMediaType())) return;
+				byte[] body = response.hasEntity() ? readAll(response.getEntityStream()) : new byte[0];
+				response.setEntityStream(new ByteArrayInputStream(body));
+				record(kind, uri, response.getHeaderString("Link"), body);
+			}
+		};
+	}
+
+	public synchronized void record(byte kind, String uri, String link, byte[] body) throws IOException {
+		writeEntry(out, kind, System.currentTimeMillis() - start, uri, link, body);
+		metrics.count("recorded_responses_total", 1);
+		metrics.count("recorded_bytes_total", body.length);
+	}
+
+	/**
+	 * Write out what has been recorded so far, so it survives a crash.
+	 */
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Read a recording.
+	 * @param visitor null to only check the file
+	 * @return false if it was cut short by a crash
+	 */
+	public static boolean read(Path file, Visitor visitor) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file),
+				65536)))) {
+			if (in.read() != HEADER) throw new IOException("not a recording: " + file);
+			int kind = HEADER;
+			long first = -1;
+			// from this recorder's start to the first one's
+			long shift = 0;
+			while (true) {
+				if (kind == HEADER) {
+					String idField;
+					String lastModifiedField;
+					try {
+						if (in.readInt() != MAGIC) throw new IOException("not a recording: " + file);
+						idField = in.readUTF();
+						lastModifiedField = in.readUTF();
+						long start = in.readLong();
+						if (first < 0) first = start;
+						shift = start - first;
+					} catch (EOFException | ZipException e) {
+						return false;
+					}
+					if (visitor != null) visitor.header(idField, lastModifiedField, first);
+				} else {
+					long offset;
+					String uri;
+					String link;
+					byte[] body;
+					try {
+						offset = in.readLong();
+						uri = in.readUTF();
+						link = in.readUTF();
+						body = new byte[in.readInt()];
+						in.readFully(body);
+					} catch (EOFException | ZipException e) {
+						// an entry torn by a crash
+						return false;
+					}
+					if (visitor != null) visitor.entry((byte) kind, shift + offset, uri, link.isEmpty() ? null : link, body);
+				}
+				try {
+					kind = in.read();
+				} catch (EOFException | ZipException e) {
+					return false;
+				}
+				if (kind < 0) return true;
+			}
+		}
+	}
+
+	/**
+	 * Replace a recording cut short by a crash with its whole entries.
+	 */
+	private static void rewrite(Path file) throws IOException {
+		Path copy = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = open(copy, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			read(file, new Visitor() {
+				public void header(String idField, String lastModifiedField, long start) throws IOException {
+					writeHeader(out, idField, lastModifiedField, start);
+				}
+
+				public void entry(byte kind, long offsetMillis, String uri, String link, byte[] body) throws IOException {
+					writeEntry(out, kind, offsetMillis, uri, link, body);
+				}
+			});
+		}
+		Files.move(copy, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static DataOutputStream open(Path file, OpenOption... options) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file, options),
+				65536, true)));
+	}
+
+	private static void writeHeader(DataOutputStream out, String idField, String lastModifiedField, long start)
+			throws IOException {
+		out.writeByte(HEADER);
+		out.writeInt(MAGIC);
+		out.writeUTF(idField);
+		out.writeUTF(lastModifiedField);
+		out.writeLong(start);
+	}
+
+	private static void writeEntry(DataOutputStream out, byte kind, long offset, String uri, String link, byte[] body)
+			throws IOException {
+		out.writeByte(kind);
+		out.writeLong(offset);
+		out.writeUTF(uri);
+		out.writeUTF(link == null ? "" : link);
+		out.writeInt(body.length);
+		out.write(body);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+}
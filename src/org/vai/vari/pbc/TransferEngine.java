@@ -0,0 +1,143 @@
+package org.vai.vari.pbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a transfer for each item on a fixed pool of worker threads, with at
+ * most {@code concurrency} items in flight at a time. Items can be handed over
+ * all at once ({@link #transferAll}) or streamed into a {@link Batch} whose
+ * bounded queue holds back the producer when the workers fall behind.
+ */
+public class TransferEngine implements Closeable {
+
+	public interface Transfer<T> {
+		/**
+		 * @return false to stop the cycle: items not yet started are skipped
+		 */
+		boolean transfer(T item) throws Exception;
+	}
+
+	private final int concurrency;
+	private final ExecutorService executor;
+
+	public TransferEngine(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(this.concurrency, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "transfer-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Transfer every item and wait for all of them to finish.
+	 * @return false if a transfer asked to stop the cycle
+	 * @throws IOException the first failure from any transfer; runtime exceptions are rethrown as is
+	 */
+	public <T> boolean transferAll(Iterable<T> items, Transfer<T> transfer) throws IOException {
+		Batch<T> batch = begin(transfer, 0);
+		for (T item : items) {
+			if (!batch.submit(item)) break;
+		}
+		return batch.finish();
+	}
+
+	/**
+	 * Start a batch that takes items as they are produced.
+	 * @param queueSize items that may wait for a worker before {@link Batch#submit(Object)} blocks
+	 */
+	public <T> Batch<T> begin(Transfer<T> transfer, int queueSize) {
+		return new Batch<>(transfer, concurrency + Math.max(0, queueSize));
+	}
+
+	/**
+	 * Items submitted one at a time, possibly from several threads, and transferred as workers
+	 * become free. Closing a batch that hasn't finished skips the items not yet started and waits
+	 * for the rest.
+	 */
+	public class Batch<T> implements AutoCloseable {
+
+		private final Transfer<T> transfer;
+		private final int capacity;
+		private final Semaphore permits;
+		private final AtomicBoolean stopped = new AtomicBoolean();
+		private final AtomicReference<Throwable> failure = new AtomicReference<>();
+		private boolean finished;
+
+		private Batch(Transfer<T> transfer, int capacity) {
+			this.transfer = transfer;
+			this.capacity = capacity;
+			this.permits = new Semaphore(capacity);
+		}
+
+		/**
+		 * Queue an item, waiting while the queue is full.
+		 * @return false once the batch has stopped; the item is not transferred
+		 */
+		public boolean submit(final T item) {
+			permits.acquireUninterruptibly();
+			if (stopped.get()) {
+				permits.release();
+				return false;
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						if (!stopped.get() && !transfer.transfer(item)) stopped.set(true);
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+						stopped.set(true);
+					} finally {
+						permits.release();
+					}
+				}
+			});
+			return true;
+		}
+
+		/**
+		 * Wait for every submitted item to finish.
+		 * @return false if a transfer asked to stop the cycle
+		 * @throws IOException the first failure from any transfer; runtime exceptions are rethrown as is
+		 */
+		public boolean finish() throws IOException {
+			await();
+			Throwable t = failure.get();
+			if (t instanceof IOException) throw (IOException) t;
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			if (t != null) throw new RuntimeException(t);
+			return !stopped.get();
+		}
+
+		@Override
+		public void close() {
+			if (finished) return;
+			stopped.set(true);
+			await();
+		}
+
+		private void await() {
+			// every permit is back once the transfers in flight are done
+			permits.acquireUninterruptibly(capacity);
+			permits.release(capacity);
+			finished = true;
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,69 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+/**
+ * Delays between cycles.
+ */
+public class AdaptiveSchedulerTest {
+
+	@Test
+	public void backsOffAfterIdleCyclesAndStartsOverAfterWork() throws Exception {
+		// work, then three idle cycles, work again and two more idle cycles
+		List<Boolean> work = Arrays.asList(true, false, false, false, true, false, false);
+		List<Long> delays = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(1);
+		try (AdaptiveScheduler scheduler = new AdaptiveScheduler(10, 40, 2)) {
+			scheduler.start(() -> {
+				int cycle = delays.size();
+				// the delay before this cycle, set at the end of the one before it
+				delays.add(scheduler.getNextDelay());
+				if (cycle == work.size() - 1) done.countDown();
+				return cycle < work.size() && work.get(cycle);
+			});
+			done.await(10, TimeUnit.SECONDS);
+		}
+		assertEquals(Arrays.asList(0L, 10L, 20L, 40L, 0L, 10L), delays.subList(1, work.size()));
+	}
+
+	@Test
+	public void cutsAnIdleDelayToTheLimitButNotBelowTheMinimum() throws Exception {
+		CountDownLatch idle = new CountDownLatch(1);
+		try (AdaptiveScheduler scheduler = new AdaptiveScheduler(60000, 60000, 1)) {
+			scheduler.setDelayLimit(() -> 0);
+			scheduler.start(() -> {
+				idle.countDown();
+				return false;
+			});
+			idle.await(10, TimeUnit.SECONDS);
+			for (int i = 0; i < 100 && scheduler.getNextDelay() == 0; i++) Thread.sleep(10);
+			assertEquals(AdaptiveScheduler.MIN_LIMITED_DELAY, scheduler.getNextDelay());
+		}
+	}
+
+	@Test
+	public void stopsWithTheExceptionThatEndedACycle() throws InterruptedException, TimeoutException {
+		IllegalStateException failure = new IllegalStateException("cycle");
+		try (AdaptiveScheduler scheduler = new AdaptiveScheduler(10, 10, 1)) {
+			scheduler.start(() -> {
+				throw failure;
+			}).get(10, TimeUnit.SECONDS);
+			fail("the cycle's exception was lost");
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+}
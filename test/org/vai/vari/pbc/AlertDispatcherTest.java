@@ -0,0 +1,67 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Alerts sent at once, collected into digests, and dropped.
+ */
+public class AlertDispatcherTest {
+
+	// subject and message of each alert sent
+	private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+
+	@Test
+	public void sendsTheFirstAlertAtOnceAndRepeatsAsADigest() throws InterruptedException {
+		try (AlertDispatcher alerts = new AlertDispatcher((subject, message) -> sent.add(subject + ": " + message), 200, 10)) {
+			alerts.alert("source", "down");
+			assertEquals("source: down", sent.poll(5, TimeUnit.SECONDS));
+			alerts.alert("source", "down");
+			alerts.alert("source", "down");
+			alerts.alert("source", "slow");
+			assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+			String digest = sent.poll(5, TimeUnit.SECONDS);
+			assertTrue(digest, digest.startsWith("source: 3 more alerts"));
+			assertTrue(digest, digest.contains("2 x down\nslow\n"));
+		}
+	}
+
+	@Test
+	public void sendsDigestsStillBeingCollectedOnClose() throws InterruptedException {
+		try (AlertDispatcher alerts = new AlertDispatcher((subject, message) -> sent.add(subject), 60000, 10)) {
+			alerts.alert("source", "down");
+			alerts.alert("source", "down");
+			// another subject isn't held back by the first
+			alerts.alert("target", "down");
+		}
+		assertEquals("source", sent.poll());
+		assertEquals("target", sent.poll());
+		assertEquals("source", sent.poll());
+		assertNull(sent.poll());
+	}
+
+	@Test
+	public void dropsAlertsThatDontFitInTheQueue() throws InterruptedException {
+		CountDownLatch sinkBlocked = new CountDownLatch(1);
+		CountDownLatch unblock = new CountDownLatch(1);
+		try (AlertDispatcher alerts = new AlertDispatcher((subject, message) -> {
+			sinkBlocked.countDown();
+			unblock.await();
+			sent.add(subject);
+		}, 0, 2)) {
+			alerts.alert("a", "1");
+			sinkBlocked.await(5, TimeUnit.SECONDS);
+			for (String subject : new String[] { "b", "c", "d", "e" }) alerts.alert(subject, "1");
+			unblock.countDown();
+		}
+		assertEquals(3, sent.size());
+	}
+}
@@ -0,0 +1,109 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vai.vari.pbc.SimpleSyncServiceManager.StatusRecord;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long polling a stub feed: where it starts, where it carries on, and how bodies are read.
+ */
+public class ChangeFeedTest {
+
+	private final BlockingQueue<String> starttimes = new LinkedBlockingQueue<>();
+	private final BlockingQueue<String> bodies = new LinkedBlockingQueue<>();
+	private final BlockingQueue<List<StatusRecord>> delivered = new LinkedBlockingQueue<>();
+	private ExecutorService executor;
+	private HttpServer server;
+	private Client client;
+	private ChangeFeed feed;
+
+	@Before
+	public void setUp() throws IOException {
+		executor = Executors.newCachedThreadPool();
+		server = HttpExchanges.createServer(new InetSocketAddress("127.0.0.1", 0), executor);
+		server.createContext("/changes", exchange -> {
+			String starttime = HttpExchanges.queryParam(exchange, "starttime");
+			starttimes.add(starttime == null ? "" : starttime);
+			String body;
+			try {
+				// a long poll waits until there are changes
+				body = bodies.take();
+			} catch (InterruptedException e) {
+				body = "[]";
+			}
+			HttpExchanges.reply(exchange, 200, body.getBytes(StandardCharsets.UTF_8));
+		});
+		server.start();
+		client = ClientBuilder.newClient();
+	}
+
+	@After
+	public void tearDown() {
+		if (feed != null) feed.close();
+		client.close();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void startsFromTheCheckpointAndCarriesOnFromTheLatestChange() throws Exception {
+		feed = newFeed();
+		feed.setSince(() -> "2016-01-01T00:00:00");
+		feed.start();
+		assertEquals("2016-01-01T00:00:00", starttimes.poll(10, TimeUnit.SECONDS));
+		bodies.add("{\"d\":[{\"key\":\"a\",\"lastModified\":\"2016-01-01T00:00:02\"},"
+				+ "{\"key\":\"b\",\"lastModified\":\"2016-01-01T00:00:01\"}]}");
+		List<StatusRecord> changes = delivered.poll(10, TimeUnit.SECONDS);
+		assertNotNull(changes);
+		assertEquals(2, changes.size());
+		assertEquals("2016-01-01T00:00:02", starttimes.poll(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void readsEnvelopesAndSingleChangesAsJsonArrayIteratorDoes() throws Exception {
+		feed = newFeed();
+		feed.start();
+		// nothing committed yet
+		assertEquals("", starttimes.poll(10, TimeUnit.SECONDS));
+		// an object whose only field is an array, whatever its name
+		bodies.add("{\"changes\":[{\"key\":\"a\",\"lastModified\":\"t1\"},{\"key\":\"b\",\"lastModified\":\"t1\"}]}");
+		assertEquals(Arrays.asList("a", "b"), ids(delivered.poll(10, TimeUnit.SECONDS)));
+		// one change whose first field happens to be an array
+		bodies.add("{\"tags\":[\"x\"],\"key\":\"c\",\"lastModified\":\"t2\"}");
+		assertEquals(Arrays.asList("c"), ids(delivered.poll(10, TimeUnit.SECONDS)));
+	}
+
+	private ChangeFeed newFeed() {
+		URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/changes");
+		return new ChangeFeed(client, uri, "longpoll", "key", "lastModified", new JsonCodec(), delivered::add);
+	}
+
+	private static List<String> ids(List<StatusRecord> changes) {
+		assertNotNull(changes);
+		List<String> ids = new ArrayList<>();
+		for (StatusRecord change : changes) ids.add(change.id);
+		return ids;
+	}
+}
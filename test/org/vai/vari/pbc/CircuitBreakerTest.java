@@ -0,0 +1,79 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Opening after failures in a row, and letting one trial request through at a time.
+ */
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterThresholdFailuresInARow() {
+		CircuitBreaker breaker = new CircuitBreaker("target", 3, 60000);
+		assertFalse(breaker.failure());
+		assertFalse(breaker.failure());
+		breaker.success();
+		assertFalse(breaker.failure());
+		assertFalse(breaker.failure());
+		assertTrue(breaker.failure());
+		assertTrue(breaker.isOpen());
+		assertFalse(breaker.allowRequest());
+		// only the failure that opened it says so
+		assertFalse(breaker.failure());
+	}
+
+	@Test
+	public void neverOpensWithoutAThreshold() {
+		CircuitBreaker breaker = new CircuitBreaker("target", 0, 60000);
+		for (int i = 0; i < 100; i++) assertFalse(breaker.failure());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void letsOneTrialThroughOnceOpenTimeHasPassed() {
+		CircuitBreaker breaker = opened(0);
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+		breaker.success();
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void aFailedTrialKeepsItOpen() {
+		CircuitBreaker breaker = opened(0);
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.failure());
+		assertTrue(breaker.isOpen());
+		// open time has passed again at once, so the next trial may go
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void aReleasedTrialCanBeMadeAgain() {
+		CircuitBreaker breaker = opened(0);
+		assertTrue(breaker.allowRequest());
+		breaker.release();
+		assertTrue(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void noTrialUntilOpenTimeHasPassed() {
+		CircuitBreaker breaker = opened(60000);
+		assertFalse(breaker.allowRequest());
+		breaker.release();
+		assertFalse(breaker.allowRequest());
+	}
+
+	private static CircuitBreaker opened(long openTime) {
+		CircuitBreaker breaker = new CircuitBreaker("source", 1, openTime);
+		assertTrue(breaker.failure());
+		return breaker;
+	}
+}
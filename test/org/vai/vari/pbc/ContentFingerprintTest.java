@@ -0,0 +1,55 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ * What counts as the same content.
+ */
+public class ContentFingerprintTest {
+
+	private final JsonFactory factory = new JsonFactory();
+
+	@Test
+	public void ignoresFormattingAndFieldOrder() throws IOException {
+		long fingerprint = of("{\"key\":\"a\",\"body\":{\"x\":1,\"y\":[1,2]}}");
+		assertEquals(fingerprint, of("{ \"body\" : { \"y\" : [ 1, 2 ], \"x\" : 1 },\n  \"key\" : \"a\" }"));
+	}
+
+	@Test
+	public void countsArrayOrderAndValues() throws IOException {
+		long fingerprint = of("{\"key\":\"a\",\"tags\":[1,2]}");
+		assertNotEquals(fingerprint, of("{\"key\":\"a\",\"tags\":[2,1]}"));
+		assertNotEquals(fingerprint, of("{\"key\":\"a\",\"tags\":[1,3]}"));
+		// a value moved to another field
+		assertNotEquals(of("{\"a\":\"1\",\"b\":\"2\"}"), of("{\"a\":\"2\",\"b\":\"1\"}"));
+	}
+
+	@Test
+	public void countsLastModifiedUnlessIgnored() throws IOException {
+		String before = "{\"key\":\"a\",\"lastModified\":\"2016-01-01T00:00:01\",\"v\":1}";
+		String after = "{\"key\":\"a\",\"lastModified\":\"2016-01-01T00:00:02\",\"v\":1}";
+		assertNotEquals(of(before), of(after));
+		Collection<String> ignored = Collections.singleton("lastModified");
+		assertEquals(of(before, ignored), of(after, ignored));
+		// only at the top level
+		assertNotEquals(of("{\"meta\":{\"lastModified\":1}}", ignored), of("{\"meta\":{\"lastModified\":2}}", ignored));
+	}
+
+	private long of(String json) throws IOException {
+		return of(json, Collections.<String>emptySet());
+	}
+
+	private long of(String json, Collection<String> ignored) throws IOException {
+		return ContentFingerprint.of(json.getBytes(StandardCharsets.UTF_8), factory, ignored);
+	}
+}
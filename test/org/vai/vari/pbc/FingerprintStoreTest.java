@@ -0,0 +1,83 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reloading the fingerprint file, the last entry for an id winning, and compaction.
+ */
+public class FingerprintStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void reloadsWhatWasCommitted() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("fingerprints");
+		try (FingerprintStore store = FingerprintStore.open(file)) {
+			store.put("a", 1);
+			store.put("b", -2);
+			store.commit();
+			store.put("a", 3);
+			store.commit();
+			// never committed
+			store.put("c", 4);
+		}
+		try (FingerprintStore store = FingerprintStore.open(file)) {
+			assertEquals(2, store.size());
+			assertTrue(store.matches("a", 3));
+			assertFalse(store.matches("a", 1));
+			assertTrue(store.matches("b", -2));
+			assertFalse(store.matches("c", 4));
+		}
+	}
+
+	@Test
+	public void dropsALineTornByACrash() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("fingerprints");
+		try (FingerprintStore store = FingerprintStore.open(file)) {
+			store.put("a", 1);
+			store.commit();
+		}
+		Files.write(file, "b\t1f".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		try (FingerprintStore store = FingerprintStore.open(file)) {
+			assertEquals(1, store.size());
+			store.put("c", 2);
+			store.commit();
+		}
+		try (FingerprintStore store = FingerprintStore.open(file)) {
+			assertTrue(store.matches("a", 1));
+			assertFalse(store.matches("b", 0x1f));
+			assertTrue(store.matches("c", 2));
+		}
+	}
+
+	@Test
+	public void compactsToOneLinePerId() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("fingerprints");
+		try (FingerprintStore store = FingerprintStore.open(file)) {
+			for (int i = 0; i < 1500; i++) {
+				store.put("a", i);
+				store.put("b", -i);
+				store.commit();
+			}
+		}
+		assertTrue(Files.readAllLines(file).size() < 1500);
+		try (FingerprintStore store = FingerprintStore.open(file)) {
+			assertEquals(2, store.size());
+			assertTrue(store.matches("a", 1499));
+			assertTrue(store.matches("b", -1499));
+		}
+	}
+}
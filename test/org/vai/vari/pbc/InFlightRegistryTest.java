@@ -0,0 +1,90 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+/**
+ * Collapsing overlapping transfers onto the newest version, and never writing an older one after it.
+ */
+public class InFlightRegistryTest {
+
+	private final InFlightRegistry registry = new InFlightRegistry(1000);
+
+	@Test
+	public void refusesTheSameOrAnOlderVersionInFlight() {
+		InFlightRegistry.Claim claim = registry.claim("doc", "t2");
+		assertNotNull(claim);
+		assertNull(registry.claim("doc", "t2"));
+		assertNull(registry.claim("doc", "t1"));
+		registry.release(claim);
+		// not written, so the version can be sent again
+		assertNotNull(registry.claim("doc", "t2"));
+	}
+
+	@Test
+	public void refusesAnOlderVersionAfterANewerOneWasWritten() {
+		InFlightRegistry.Claim newer = registry.claim("doc", "t2");
+		newer.written();
+		registry.release(newer);
+		assertEquals("t2", registry.getWritten("doc"));
+		assertNull(registry.claim("doc", "t1"));
+		// the same version again, e.g. a record reset to send it once more, is let through
+		InFlightRegistry.Claim again = registry.claim("doc", "t2");
+		assertNotNull(again);
+		registry.release(again);
+		assertNotNull(registry.claim("doc", "t3"));
+	}
+
+	@Test
+	public void keepsTheNewestVersionWritten() {
+		InFlightRegistry.Claim older = registry.claim("doc", "t1");
+		older.written();
+		registry.release(older);
+		InFlightRegistry.Claim newer = registry.claim("doc", "t3");
+		newer.written();
+		registry.release(newer);
+		assertEquals("t3", registry.getWritten("doc"));
+		assertNull(registry.claim("doc", "t2"));
+	}
+
+	@Test
+	public void aNewerVersionWaitsForTheOlderOneInFlight() throws Exception {
+		InFlightRegistry.Claim older = registry.claim("doc", "t1");
+		CompletableFuture<InFlightRegistry.Claim> newer = CompletableFuture.supplyAsync(() -> registry.claim("doc", "t2"));
+		try {
+			newer.get(200, TimeUnit.MILLISECONDS);
+			throw new AssertionError("claimed while the older version was in flight");
+		} catch (TimeoutException e) {
+			// waiting
+		}
+		older.written();
+		registry.release(older);
+		assertNotNull(newer.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void remembersABoundedNumberOfKeys() {
+		InFlightRegistry small = new InFlightRegistry(16);
+		for (int i = 0; i < 1000; i++) {
+			InFlightRegistry.Claim claim = small.claim("doc" + i, "t2");
+			claim.written();
+			small.release(claim);
+		}
+		int remembered = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (small.getWritten("doc" + i) != null) remembered++;
+		}
+		assertTrue(remembered <= 16);
+		assertFalse(remembered == 0);
+		assertEquals("t2", small.getWritten("doc999"));
+	}
+}
@@ -0,0 +1,117 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Telling arrays and <code>{"d":[...]}</code> envelopes from single documents, from bytes and from streams.
+ */
+public class JsonArrayIteratorTest {
+
+	private final JsonCodec codec = new JsonCodec();
+	private final JsonFactory factory = codec.getFactory();
+
+	@Test
+	public void iteratesAnArray() throws IOException {
+		byte[] json = bytes("[{\"key\":\"a\"},{\"key\":\"b\"}]");
+		assertEquals(2, keys(new JsonArrayIterator<>(json, factory, p -> (JsonNode) p.readValueAsTree())).size());
+		assertEquals(2, keys(new JsonArrayIterator<>(stream(json), p -> (JsonNode) p.readValueAsTree())).size());
+	}
+
+	@Test
+	public void unwrapsAnEnvelope() throws IOException {
+		byte[] json = bytes("{\"d\":[{\"key\":\"a\"},{\"key\":\"b\"}]}");
+		List<String> fromBytes = keys(new JsonArrayIterator<>(json, factory, p -> (JsonNode) p.readValueAsTree()));
+		List<String> fromStream = keys(new JsonArrayIterator<>(stream(json), p -> (JsonNode) p.readValueAsTree()));
+		assertEquals(2, fromBytes.size());
+		assertEquals(fromBytes, fromStream);
+		assertEquals("b", fromStream.get(1));
+	}
+
+	@Test
+	public void readsADocumentWhoseFirstFieldIsAnArrayAsOneDocument() throws IOException {
+		byte[] json = bytes("{\"tags\":[\"x\",\"y\"],\"key\":\"a\"}");
+		JsonNode expected = codec.treeReader.readValue(json);
+		try (JsonArrayIterator<JsonNode> docs = new JsonArrayIterator<>(json, codec.treeReader)) {
+			assertTrue(docs.isSingleDocument());
+			assertEquals(expected, docs.next());
+			assertFalse(docs.hasNext());
+		}
+		try (JsonArrayIterator<JsonNode> docs = new JsonArrayIterator<>(new ByteArrayInputStream(json), codec.treeReader)) {
+			assertTrue(docs.isSingleDocument());
+			assertEquals(expected, docs.next());
+		}
+	}
+
+	@Test
+	public void readsAnEmptyArrayAsNoDocuments() throws IOException {
+		assertTrue(keys(new JsonArrayIterator<>(bytes("{\"d\":[]}"), factory, p -> (JsonNode) p.readValueAsTree()))
+				.isEmpty());
+		assertTrue(keys(new JsonArrayIterator<>(stream(bytes("[]")), p -> (JsonNode) p.readValueAsTree())).isEmpty());
+	}
+
+	@Test
+	public void streamsAnEnvelopeLongerThanTheLookahead() throws IOException {
+		int count = 0;
+		try (JsonArrayIterator<Integer> numbers = new JsonArrayIterator<>(stream(longEnvelope("")),
+				p -> p.getIntValue())) {
+			for (int n : numbers) assertEquals(count++, n);
+		}
+		// every element, not just those held back
+		assertTrue(count > 100000);
+	}
+
+	@Test
+	public void failsAtTheEndOfALongArrayFollowedByAnotherField() throws IOException {
+		try (JsonArrayIterator<Integer> numbers = new JsonArrayIterator<>(stream(longEnvelope(",\"next\":1")),
+				p -> p.getIntValue())) {
+			while (numbers.hasNext()) numbers.next();
+			fail("read as an envelope");
+		} catch (UncheckedIOException e) {
+			assertTrue(e.getMessage().contains("envelope"));
+		}
+	}
+
+	private static byte[] longEnvelope(String after) {
+		StringBuilder json = new StringBuilder("{\"d\":[");
+		for (int i = 0; json.length() < JsonArrayIterator.ENVELOPE_LOOKAHEAD + 100000; i++) {
+			if (i > 0) json.append(',');
+			json.append(i);
+		}
+		return bytes(json.append(']').append(after).append('}').toString());
+	}
+
+	/**
+	 * @return a parser reading the JSON as a stream, as a streaming parse of a response would
+	 */
+	private JsonParser stream(byte[] json) throws IOException {
+		return factory.createParser(new ByteArrayInputStream(json));
+	}
+
+	private static List<String> keys(JsonArrayIterator<JsonNode> docs) throws IOException {
+		List<String> keys = new ArrayList<>();
+		try (JsonArrayIterator<JsonNode> it = docs) {
+			for (JsonNode doc : it) keys.add(doc.path("key").asText());
+		}
+		return keys;
+	}
+
+	private static byte[] bytes(String json) {
+		return json.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,60 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.ws.rs.client.Client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Clients built by one factory share their pooled connections.
+ */
+public class PooledClientFactoryTest {
+
+	private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+	private ExecutorService executor;
+	private HttpServer server;
+	private PooledClientFactory factory;
+
+	@Before
+	public void setUp() throws IOException {
+		executor = Executors.newCachedThreadPool();
+		server = HttpExchanges.createServer(new InetSocketAddress("127.0.0.1", 0), executor);
+		server.createContext("/", exchange -> {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			HttpExchanges.reply(exchange, 200, "[]".getBytes());
+		});
+		server.start();
+		factory = new PooledClientFactory(4, 8, 0);
+	}
+
+	@After
+	public void tearDown() {
+		factory.close();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void clientsOfDifferentRoutesShareOneConnection() {
+		Client source = factory.newClient(null, null, (host, session) -> true);
+		Client target = factory.newClient(null, null, (host, session) -> true);
+		String uri = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+		for (int i = 0; i < 5; i++) {
+			source.target(uri).request().get().readEntity(String.class);
+			target.target(uri).request().get().readEntity(String.class);
+		}
+		assertEquals(1, clientPorts.size());
+	}
+}
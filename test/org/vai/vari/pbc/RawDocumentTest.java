@@ -0,0 +1,50 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Peeking at a response body to tell an array or envelope from a single document.
+ */
+public class RawDocumentTest {
+
+	@Test
+	public void arraysAndEnvelopes() throws IOException {
+		assertArrayOrEnvelope(true, "[]");
+		assertArrayOrEnvelope(true, "  [{\"key\":\"a\"}]");
+		assertArrayOrEnvelope(true, "{\"d\":[{\"key\":\"a\"}]}");
+		assertArrayOrEnvelope(true, " { \"d\" : [ {\"key\":\"]}\"} ] } ");
+	}
+
+	@Test
+	public void singleDocuments() throws IOException {
+		assertArrayOrEnvelope(false, "{\"key\":\"a\"}");
+		assertArrayOrEnvelope(false, "{}");
+		assertArrayOrEnvelope(false, "{\"tags\":[\"x\",\"y\"],\"key\":\"a\"}");
+		assertArrayOrEnvelope(false, "{\"tags\":[[1],{\"a\":[2]}],\"key\":\"a\"}");
+	}
+
+	@Test
+	public void leavesTheStreamWhereItWas() throws IOException {
+		byte[] json = "{\"tags\":[\"x\"],\"key\":\"a\"}".getBytes(StandardCharsets.UTF_8);
+		BufferedInputStream in = RawDocument.buffered(new ByteArrayInputStream(json));
+		assertFalse(RawDocument.isArrayOrEnvelope(in));
+		byte[] read = new byte[json.length];
+		assertEquals(json.length, in.read(read));
+		assertArrayEquals(json, read);
+	}
+
+	private static void assertArrayOrEnvelope(boolean expected, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		assertEquals(json, expected, RawDocument.isArrayOrEnvelope(body));
+		assertEquals(json, expected, RawDocument.isArrayOrEnvelope(RawDocument.buffered(new ByteArrayInputStream(body))));
+	}
+}
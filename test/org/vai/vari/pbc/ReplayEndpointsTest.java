@@ -0,0 +1,51 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The replayed sync table.
+ */
+public class ReplayEndpointsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final JsonCodec codec = new JsonCodec();
+
+	@Test
+	public void leavesRecordsWithoutLastModifiedOutOfAStarttimeQuery() throws IOException {
+		File recording = folder.newFile("recording");
+		try (TrafficRecorder recorder = TrafficRecorder.create(recording.toPath(), "key", "lastModified")) {
+			recorder.record(TrafficRecorder.SYNC, "/sync", null, ("{\"d\":[{\"id\":\"a\",\"lastModified\":\"2016-01-01T00:00:02\"},"
+					+ "{\"id\":\"b\"}]}").getBytes(StandardCharsets.UTF_8));
+		}
+		Client client = ClientBuilder.newClient();
+		try (ReplayEndpoints endpoints = new ReplayEndpoints(recording, "127.0.0.1", 0, 1, 0)) {
+			Response response = client.target(endpoints.getBaseUri() + "sync").queryParam("starttime", "2016-01-01T00:00:01")
+					.request().get();
+			assertEquals(200, response.getStatus());
+			JsonNode body = codec.treeReader.readValue(response.readEntity(byte[].class));
+			assertEquals(1, body.get("d").size());
+			assertEquals("a", body.get("d").get(0).get("id").asText());
+			// without a starttime, every record
+			body = codec.treeReader.readValue(client.target(endpoints.getBaseUri() + "sync").request().get(byte[].class));
+			assertEquals(2, body.get("d").size());
+		} finally {
+			client.close();
+		}
+	}
+}
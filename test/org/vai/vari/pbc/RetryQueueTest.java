@@ -0,0 +1,84 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Backoff, jitter and bookkeeping of the retry times of failed documents.
+ */
+public class RetryQueueTest {
+
+	@Test
+	public void aDocumentThatHasntFailedIsDue() {
+		RetryQueue queue = new RetryQueue(1000, 4000);
+		assertTrue(queue.isDue("a"));
+		assertEquals(0, queue.getAttempts("a"));
+		assertEquals(-1, queue.getNextDelay());
+	}
+
+	@Test
+	public void eachFailureDoublesTheDelayUpToTheMaximum() {
+		RetryQueue queue = new RetryQueue(1000, 4000);
+		assertBetween(500, 1000, queue.failed("a"));
+		assertBetween(1000, 2000, queue.failed("a"));
+		assertBetween(2000, 4000, queue.failed("a"));
+		for (int i = 0; i < 40; i++) assertBetween(2000, 4000, queue.failed("a"));
+		assertEquals(43, queue.getAttempts("a"));
+		assertFalse(queue.isDue("a"));
+		assertBetween(0, 4000, queue.getNextDelay());
+	}
+
+	@Test
+	public void succeededForgetsTheDocument() {
+		RetryQueue queue = new RetryQueue(1000, 4000);
+		queue.failed("a");
+		queue.succeeded("a");
+		assertTrue(queue.isDue("a"));
+		assertEquals(0, queue.size());
+		assertEquals(-1, queue.getNextDelay());
+	}
+
+	@Test
+	public void anOverdueDocumentIsDueAtOnce() throws InterruptedException {
+		RetryQueue queue = new RetryQueue(1, 1);
+		queue.failed("a");
+		Thread.sleep(20);
+		assertTrue(queue.isDue("a"));
+		assertEquals(0, queue.getNextDelay());
+	}
+
+	@Test
+	public void postponingAnOverdueDocumentPushesItBack() throws InterruptedException {
+		RetryQueue queue = new RetryQueue(50, 50);
+		queue.failed("a");
+		Thread.sleep(60);
+		assertEquals(0, queue.getNextDelay());
+		queue.postpone("a");
+		assertFalse(queue.isDue("a"));
+		assertBetween(1, 50, queue.getNextDelay());
+		assertEquals(1, queue.getAttempts("a"));
+		// only documents already waiting are postponed
+		queue.postpone("b");
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void retainAllDropsTheDocumentsNoLongerPending() {
+		RetryQueue queue = new RetryQueue(1000, 4000);
+		queue.failed("a");
+		queue.failed("b");
+		queue.retainAll(Collections.singleton("b"));
+		assertEquals(1, queue.size());
+		assertTrue(queue.isDue("a"));
+		assertFalse(queue.isDue("b"));
+	}
+
+	private static void assertBetween(long min, long max, long value) {
+		assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+	}
+}
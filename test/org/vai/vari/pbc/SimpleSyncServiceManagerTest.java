@@ -0,0 +1,88 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+/**
+ * Starting routes the way main does: each one resumes from its own checkpoint.
+ */
+public class SimpleSyncServiceManagerTest {
+
+	// nothing listens here; warm-up doesn't connect and no cycle runs
+	private static final String CONFIG = "sourceUri: http://127.0.0.1:9/src/\n"
+			+ "targetUri: http://127.0.0.1:9/tgt/\n"
+			+ "syncUri: http://127.0.0.1:9/sync\n"
+			+ "sourceKeyStore: ''\n"
+			+ "targetUsername: ''\n"
+			+ "targetPassword: ''\n"
+			+ "idField: key\n"
+			+ "alertSink: log\n"
+			+ "warmUpConnections: 0\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+
+	@Test
+	public void resumesFromTheCheckpoint() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("checkpoint");
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(file, 100)) {
+			checkpoint.addKey("a|2016-01-01T00:00:49");
+			checkpoint.commit("2016-01-01T00:00:49");
+		}
+		List<SimpleSyncServiceManager> routes = start(CONFIG + "checkpointFile: '" + file + "'\n"
+				+ "mruTimestamp: 2000-01-01T00:00:00\n");
+		assertEquals(1, routes.size());
+		assertEquals("2016-01-01T00:00:49", routes.get(0).mruTimestamp);
+	}
+
+	@Test
+	public void startsFromTheFullHistoryWithoutACheckpoint() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("checkpoint");
+		List<SimpleSyncServiceManager> routes = start(CONFIG + "checkpointFile: '" + file + "'\n"
+				+ "mruTimestamp: 2000-01-01T00:00:00\n");
+		assertNull(routes.get(0).mruTimestamp);
+	}
+
+	@Test
+	public void eachRouteHasItsOwnCheckpointAndFingerprints() throws IOException {
+		Path checkpointFile = folder.getRoot().toPath().resolve("checkpoint");
+		Path fingerprintFile = folder.getRoot().toPath().resolve("fingerprints");
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(checkpointFile.resolveSibling("checkpoint.images"), 100)) {
+			checkpoint.commit("2016-01-01T00:00:07");
+		}
+		List<SimpleSyncServiceManager> routes = start(CONFIG + "checkpointFile: '" + checkpointFile + "'\n"
+				+ "fingerprintFile: '" + fingerprintFile + "'\n"
+				+ "routes:\n"
+				+ "  - name: images\n"
+				+ "  - name: variants\n");
+		assertEquals(checkpointFile + ".images", routes.get(0).checkpointFile);
+		assertEquals(fingerprintFile + ".variants", routes.get(1).fingerprintFile);
+		assertEquals("2016-01-01T00:00:07", routes.get(0).mruTimestamp);
+		assertNull(routes.get(1).mruTimestamp);
+	}
+
+	private List<SimpleSyncServiceManager> start(String yaml) throws IOException {
+		JsonNode config = mapper.readTree(yaml);
+		SimpleSyncServiceManager mgr = mapper.treeToValue(config, SimpleSyncServiceManager.class);
+		mgr.logger = LoggerFactory.getLogger(SimpleSyncServiceManager.class);
+		List<SimpleSyncServiceManager> routes = mgr.startRoutes(mapper, config);
+		for (SimpleSyncServiceManager route : routes) route.close();
+		mgr.close();
+		return routes;
+	}
+}
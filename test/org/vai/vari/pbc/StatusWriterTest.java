@@ -0,0 +1,145 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vai.vari.pbc.SimpleSyncServiceManager.StatusRecord;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Status writes against a stub sync endpoint: per-item batch results, 409s, and the fallback to single records.
+ */
+public class StatusWriterTest {
+
+	private final JsonCodec codec = new JsonCodec();
+	// each request body, and what the endpoint answers to it: a status code and a body
+	private final List<JsonNode> requests = Collections.synchronizedList(new ArrayList<>());
+	private volatile Function<JsonNode, Reply> answer;
+	private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> rejected = Collections.synchronizedList(new ArrayList<>());
+	private ExecutorService executor;
+	private HttpServer server;
+	private Client client;
+
+	@Before
+	public void setUp() throws IOException {
+		executor = Executors.newCachedThreadPool();
+		server = HttpExchanges.createServer(new InetSocketAddress("127.0.0.1", 0), executor);
+		server.createContext("/sync", exchange -> {
+			JsonNode body = codec.treeReader.readValue(HttpExchanges.readBody(exchange));
+			requests.add(body);
+			Reply reply = answer.apply(body);
+			HttpExchanges.reply(exchange, reply.code, reply.body.getBytes(StandardCharsets.UTF_8));
+		});
+		server.start();
+		client = ClientBuilder.newClient();
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void handsOnEachItemOfABatchByItsOwnResult() throws IOException {
+		answer = body -> new Reply(200, "{\"d\":[{\"id\":\"a\",\"status\":200},{\"id\":\"b\",\"status\":400},"
+				+ "{\"id\":\"c\",\"status\":200}]}");
+		StatusWriter writer = newWriter("PUT", 3);
+		for (String id : new String[] { "a", "b", "c" }) writer.write(record(id));
+		assertEquals(1, requests.size());
+		assertTrue(requests.get(0).isArray());
+		assertEquals(Arrays.asList("a", "c"), written);
+		assertEquals(Arrays.asList("b"), rejected);
+	}
+
+	@Test
+	public void takesAConflictOnAPostAsWritten() throws IOException {
+		answer = body -> new Reply(409, "");
+		newWriter("POST", 1).write(record("a"));
+		assertEquals(Arrays.asList("a"), written);
+		try {
+			newWriter("PUT", 1).write(record("b"));
+			fail("a 409 on a PUT counted as written");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("409"));
+		}
+	}
+
+	@Test
+	public void fallsBackToSingleRecordsWhenArraysAreNotSupported() throws IOException {
+		answer = body -> body.isArray() ? new Reply(415, "") : new Reply(200, "");
+		StatusWriter writer = newWriter("PUT", 2);
+		for (String id : new String[] { "a", "b", "c", "d" }) writer.write(record(id));
+		writer.flush();
+		// one array, then only single records
+		assertEquals(5, requests.size());
+		for (JsonNode request : requests.subList(1, 5)) assertTrue(request.isObject());
+		assertEquals(Arrays.asList("a", "b", "c", "d"), written);
+	}
+
+	@Test
+	public void failsABadBatchWithoutGivingUpOnBatching() throws IOException {
+		answer = body -> body.size() == 2 && body.get(1).path("id").asText().equals("b")
+				? new Reply(400, "") : new Reply(200, "");
+		StatusWriter writer = newWriter("PUT", 2);
+		writer.write(record("a"));
+		try {
+			writer.write(record("b"));
+			fail("a 400 for a batch counted as written");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("400"));
+		}
+		writer.write(record("c"));
+		writer.write(record("d"));
+		assertEquals(2, requests.size());
+		assertTrue(requests.get(1).isArray());
+		assertEquals(Arrays.asList("c", "d"), written);
+	}
+
+	private StatusWriter newWriter(String method, int batchSize) {
+		StatusWriter writer = new StatusWriter(client, "http://127.0.0.1:" + server.getAddress().getPort() + "/sync",
+				method, batchSize, 0, null, codec);
+		writer.setListener(records -> records.forEach(r -> written.add(r.id)));
+		writer.setRejectListener(records -> records.forEach(r -> rejected.add(r.id)));
+		return writer;
+	}
+
+	private static final class Reply {
+		final int code;
+		final String body;
+
+		Reply(int code, String body) {
+			this.code = code;
+			this.body = body;
+		}
+	}
+
+	private static StatusRecord record(String id) {
+		StatusRecord record = new StatusRecord();
+		record.id = id;
+		record.lastModified = "2016-01-01T00:00:01";
+		return record;
+	}
+}
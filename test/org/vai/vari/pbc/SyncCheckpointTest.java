@@ -0,0 +1,82 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reloading the checkpoint file, dropping a line torn by a crash, and compaction.
+ */
+public class SyncCheckpointTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void reloadsWhatWasCommitted() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("checkpoint");
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(file, 100)) {
+			assertNull(checkpoint.getMruTimestamp());
+			checkpoint.addKey("a|2016-01-01T00:00:01");
+			checkpoint.addKey("b|2016-01-01T00:00:02");
+			checkpoint.commit("2016-01-01T00:00:02");
+			checkpoint.addKey("c|2016-01-01T00:00:03");
+			checkpoint.commit(null);
+			// never committed
+			checkpoint.addKey("d|2016-01-01T00:00:04");
+		}
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(file, 100)) {
+			assertEquals("2016-01-01T00:00:02", checkpoint.getMruTimestamp());
+			assertEquals(Arrays.asList("a|2016-01-01T00:00:01", "b|2016-01-01T00:00:02", "c|2016-01-01T00:00:03"),
+					checkpoint.getKeys());
+		}
+	}
+
+	@Test
+	public void dropsALineTornByACrash() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("checkpoint");
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(file, 100)) {
+			checkpoint.addKey("a|1");
+			checkpoint.commit("1");
+		}
+		Files.write(file, "K\tb|".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(file, 100)) {
+			assertEquals(Collections.singletonList("a|1"), checkpoint.getKeys());
+			checkpoint.addKey("c|2");
+			checkpoint.commit("2");
+		}
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(file, 100)) {
+			assertEquals(Arrays.asList("a|1", "c|2"), checkpoint.getKeys());
+			assertEquals("2", checkpoint.getMruTimestamp());
+		}
+	}
+
+	@Test
+	public void compactsToTheNewestKeys() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("checkpoint");
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(file, 3)) {
+			for (int i = 1; i <= 20; i++) {
+				checkpoint.addKey("k" + i);
+				checkpoint.commit("t" + i);
+			}
+			assertEquals(Arrays.asList("k18", "k19", "k20"), checkpoint.getKeys());
+		}
+		assertTrue(Files.readAllLines(file).size() <= 2 * 3 + 2);
+		try (SyncCheckpoint checkpoint = SyncCheckpoint.open(file, 3)) {
+			assertEquals("t20", checkpoint.getMruTimestamp());
+			assertEquals(Arrays.asList("k18", "k19", "k20"), checkpoint.getKeys());
+		}
+	}
+}
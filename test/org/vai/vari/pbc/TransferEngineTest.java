@@ -0,0 +1,100 @@
+package org.vai.vari.pbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Items in flight, stopping a cycle, and failures.
+ */
+public class TransferEngineTest {
+
+	private final TransferEngine engine = new TransferEngine(4);
+
+	@After
+	public void tearDown() {
+		engine.close();
+	}
+
+	@Test
+	public void runsAtMostConcurrencyTransfersAtATime() throws IOException {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger most = new AtomicInteger();
+		AtomicInteger done = new AtomicInteger();
+		assertTrue(engine.transferAll(items(40), item -> {
+			most.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(5);
+			running.decrementAndGet();
+			done.incrementAndGet();
+			return true;
+		}));
+		assertEquals(40, done.get());
+		assertEquals(4, most.get());
+	}
+
+	@Test
+	public void skipsItemsNotYetStartedOnceATransferStops() throws IOException {
+		AtomicInteger done = new AtomicInteger();
+		assertFalse(engine.transferAll(items(100), item -> {
+			Thread.sleep(1);
+			done.incrementAndGet();
+			return item != 3;
+		}));
+		assertTrue(done.get() < 100);
+	}
+
+	@Test
+	public void rethrowsTheFirstFailure() {
+		try {
+			engine.transferAll(items(10), item -> {
+				if (item == 5) throw new IOException("item 5");
+				return true;
+			});
+			fail("the failure was lost");
+		} catch (IOException e) {
+			assertEquals("item 5", e.getMessage());
+		}
+	}
+
+	@Test
+	public void holdsBackTheProducerWhileTheQueueIsFull() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger submitted = new AtomicInteger();
+		try (TransferEngine.Batch<Integer> batch = engine.begin(item -> {
+			release.await();
+			return true;
+		}, 2)) {
+			Thread producer = new Thread(() -> {
+				for (int i = 0; i < 10; i++) {
+					batch.submit(i);
+					submitted.incrementAndGet();
+				}
+			});
+			producer.start();
+			Thread.sleep(100);
+			// four workers and two queued
+			assertEquals(6, submitted.get());
+			release.countDown();
+			producer.join(TimeUnit.SECONDS.toMillis(10));
+			assertTrue(batch.finish());
+			assertEquals(10, submitted.get());
+		}
+	}
+
+	private static List<Integer> items(int n) {
+		List<Integer> items = new ArrayList<>();
+		for (int i = 0; i < n; i++) items.add(i);
+		return items;
+	}
+}